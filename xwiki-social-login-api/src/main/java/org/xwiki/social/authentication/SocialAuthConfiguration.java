@@ -32,5 +32,105 @@ public interface SocialAuthConfiguration
     
     boolean isAutomaticUserCreation();
 
-    String getDomainRestriction();    
+    String getDomainRestriction();
+
+    /**
+     * @return the OAuth consumer properties of the current wiki, in the format of <tt>oauth_consumer.properties</tt>,
+     *         overriding the properties of the file, empty to use the file alone; they are read from the
+     *         <tt>XWiki.SocialLoginConsumerConfiguration</tt> document, which only the administrators can view, and
+     *         never from <tt>xwiki.properties</tt>
+     */
+    String getOAuthProperties();
+
+    /**
+     * @return the hint of the {@code OAuthCallbackExecutor} running the calls to the providers: "default" for a
+     *         bounded thread pool, "virtual" for virtual threads when the JVM supports them
+     */
+    String getCallbackExecutor();
+
+    /**
+     * @return the maximum number of calls to the providers running at the same time
+     */
+    int getCallbackThreads();
+
+    /**
+     * @return the maximum number of calls to the providers waiting for a thread, calls beyond are refused
+     */
+    int getCallbackQueueSize();
+
+    /**
+     * @param provider the provider called. Examples: "facebook", "twitter", etc.
+     * @return the maximum time to wait for a call to this provider, in seconds
+     */
+    int getCallbackTimeout(String provider);
+
+    /**
+     * @return the maximum time to establish an outbound HTTP connection, in milliseconds
+     */
+    int getHttpConnectionTimeout();
+
+    /**
+     * @return the maximum time to wait for data on an outbound HTTP connection, in milliseconds
+     */
+    int getHttpSocketTimeout();
+
+    /**
+     * @return the maximum number of outbound HTTP connections to the same host
+     */
+    int getHttpMaxConnectionsPerHost();
+
+    /**
+     * @return the maximum number of outbound HTTP connections
+     */
+    int getHttpMaxConnections();
+
+    /**
+     * @return the maximum width of the avatars imported from the social profiles, in pixels
+     */
+    int getAvatarMaxWidth();
+
+    /**
+     * @return the maximum height of the avatars imported from the social profiles, in pixels
+     */
+    int getAvatarMaxHeight();
+
+    /**
+     * @return the maximum size of a profile picture to download, in bytes
+     */
+    int getAvatarMaxSize();
+
+    /**
+     * @return the hint of the {@code SocialAuthSessionStore} keeping the social sessions: "default" for the HTTP
+     *         sessions, "jdbc" for a database shared by the cluster nodes and surviving restarts, which still needs
+     *         sticky sessions
+     */
+    String getSessionStore();
+
+    /**
+     * @return the time a social session is kept by a persistent session store after its last use, in seconds
+     */
+    int getSessionTimeToLive();
+
+    /**
+     * @return the JDBC URL of the database of the "jdbc" session store, empty for an embedded HSQLDB database in the
+     *         permanent directory
+     */
+    String getSessionDatabaseURL();
+
+    /**
+     * @return the class of the JDBC driver of the database of the "jdbc" session store, loaded before connecting
+     *         since the drivers of a web application are not always found by the {@code DriverManager}; empty to
+     *         rely on the drivers already registered, except for the default HSQLDB database
+     */
+    String getSessionDatabaseDriver();
+
+    /**
+     * @return the user connecting to the database of the "jdbc" session store
+     */
+    String getSessionDatabaseUser();
+
+    /**
+     * @return the password of the user connecting to the database of the "jdbc" session store
+     */
+    String getSessionDatabasePassword();
 }
@@ -0,0 +1,354 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.brickred.socialauth.AccessGrant;
+import org.brickred.socialauth.Permission;
+import org.brickred.socialauth.Profile;
+import org.brickred.socialauth.util.BirthDate;
+
+/**
+ * What a social session keeps of a connection to a provider: a snapshot of the profile of the user on the provider,
+ * taken when connecting, and what is needed to rebuild a live connection to the provider API when one is needed.
+ * <p>
+ * The snapshot decides which user a session resolves to, so it is never handed out: {@link #getProfile()} gives a
+ * new copy on each call, which callers, scripts included, can modify without changing the grant.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class SocialAuthGrant implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The attribute of OAuth 2 access grants holding their time to live, in seconds. */
+    private static final String EXPIRES = "expires";
+
+    /** The permissions an access grant can be given with, matched by name when reading a grant. */
+    private static final Permission[] PERMISSIONS = {Permission.ALL, Permission.DEFAULT,
+        Permission.AUTHENTICATE_ONLY, Permission.CUSTOM};
+
+    /** The types of the attribute values of the access grants written by {@link #write(DataOutput)}. */
+    private static final char STRING = 'S';
+
+    private static final char INTEGER = 'I';
+
+    private static final char LONG = 'L';
+
+    private static final char BOOLEAN = 'B';
+
+    private final String provider;
+
+    /** The snapshot of the profile, never given to the callers. */
+    private final Profile profile;
+
+    private final AccessGrant accessGrant;
+
+    /** The time the access grant expires at, in milliseconds, <code>0</code> if unknown. */
+    private final long expiry;
+
+    /**
+     * @param provider the id of the provider
+     * @param profile the profile of the user on the provider, copied
+     * @param accessGrant the access grant given by the provider
+     */
+    public SocialAuthGrant(String provider, Profile profile, AccessGrant accessGrant)
+    {
+        this.provider = provider;
+        this.profile = copy(profile);
+        this.accessGrant = accessGrant;
+
+        Object expires = accessGrant != null ? accessGrant.getAttribute(EXPIRES) : null;
+        String seconds = expires != null ? expires.toString() : null;
+        if (StringUtils.isNumeric(seconds) && !StringUtils.isEmpty(seconds)) {
+            this.expiry = System.currentTimeMillis() + Long.parseLong(seconds) * 1000L;
+        } else {
+            this.expiry = 0;
+        }
+    }
+
+    private SocialAuthGrant(String provider, Profile profile, AccessGrant accessGrant, long expiry)
+    {
+        this.provider = provider;
+        this.profile = profile;
+        this.accessGrant = accessGrant;
+        this.expiry = expiry;
+    }
+
+    /**
+     * @return the id of the provider
+     */
+    public String getProvider()
+    {
+        return this.provider;
+    }
+
+    /**
+     * @return the id of the user on the provider, <code>null</code> if the profile is not known
+     */
+    public String getValidatedId()
+    {
+        return this.profile != null ? this.profile.getValidatedId() : null;
+    }
+
+    /**
+     * @return a copy of the profile of the user on the provider, as it was when connecting or when last refreshed,
+     *         <code>null</code> if it is not known
+     */
+    public Profile getProfile()
+    {
+        return copy(this.profile);
+    }
+
+    /**
+     * @return the access grant given by the provider, <code>null</code> if the provider didn't give any
+     */
+    public AccessGrant getAccessGrant()
+    {
+        return this.accessGrant;
+    }
+
+    /**
+     * @return the time the access grant expires at, in milliseconds, <code>0</code> if unknown
+     */
+    public long getExpiry()
+    {
+        return this.expiry;
+    }
+
+    /**
+     * @return <code>true</code> if the access grant is known to have expired
+     */
+    public boolean isExpired()
+    {
+        return this.expiry > 0 && System.currentTimeMillis() > this.expiry;
+    }
+
+    private static Profile copy(Profile profile)
+    {
+        if (profile == null) {
+            return null;
+        }
+        Profile copy = new Profile();
+        copy.setProviderId(profile.getProviderId());
+        copy.setValidatedId(profile.getValidatedId());
+        copy.setFirstName(profile.getFirstName());
+        copy.setLastName(profile.getLastName());
+        copy.setFullName(profile.getFullName());
+        copy.setDisplayName(profile.getDisplayName());
+        copy.setEmail(profile.getEmail());
+        copy.setGender(profile.getGender());
+        BirthDate dob = profile.getDob();
+        if (dob != null) {
+            BirthDate dobCopy = new BirthDate();
+            dobCopy.setDay(dob.getDay());
+            dobCopy.setMonth(dob.getMonth());
+            dobCopy.setYear(dob.getYear());
+            copy.setDob(dobCopy);
+        }
+        copy.setCountry(profile.getCountry());
+        copy.setLanguage(profile.getLanguage());
+        copy.setLocation(profile.getLocation());
+        copy.setProfileImageURL(profile.getProfileImageURL());
+        return copy;
+    }
+
+    /**
+     * Writes this grant field by field, as strings and numbers only, so that reading it back never instantiates
+     * classes named by the data.
+     *
+     * @param out where to write the grant
+     * @throws IOException if the grant cannot be written
+     */
+    void write(DataOutput out) throws IOException
+    {
+        writeString(out, this.provider);
+        out.writeLong(this.expiry);
+
+        out.writeBoolean(this.profile != null);
+        if (this.profile != null) {
+            writeString(out, this.profile.getProviderId());
+            writeString(out, this.profile.getValidatedId());
+            writeString(out, this.profile.getFirstName());
+            writeString(out, this.profile.getLastName());
+            writeString(out, this.profile.getFullName());
+            writeString(out, this.profile.getDisplayName());
+            writeString(out, this.profile.getEmail());
+            writeString(out, this.profile.getGender());
+            writeString(out, this.profile.getCountry());
+            writeString(out, this.profile.getLanguage());
+            writeString(out, this.profile.getLocation());
+            writeString(out, this.profile.getProfileImageURL());
+            BirthDate dob = this.profile.getDob();
+            out.writeBoolean(dob != null);
+            if (dob != null) {
+                out.writeInt(dob.getDay());
+                out.writeInt(dob.getMonth());
+                out.writeInt(dob.getYear());
+            }
+        }
+
+        out.writeBoolean(this.accessGrant != null);
+        if (this.accessGrant != null) {
+            writeString(out, this.accessGrant.getKey());
+            writeString(out, this.accessGrant.getSecret());
+            writeString(out, this.accessGrant.getProviderId());
+            Permission permission = this.accessGrant.getPermission();
+            writeString(out, permission != null ? permission.toString() : null);
+            writeAttributes(out, this.accessGrant.getAttributes());
+        }
+    }
+
+    /**
+     * @param in where to read the grant from
+     * @return the grant written by {@link #write(DataOutput)}
+     * @throws IOException if the grant cannot be read
+     */
+    static SocialAuthGrant read(DataInput in) throws IOException
+    {
+        String provider = readString(in);
+        long expiry = in.readLong();
+
+        Profile profile = null;
+        if (in.readBoolean()) {
+            profile = new Profile();
+            profile.setProviderId(readString(in));
+            profile.setValidatedId(readString(in));
+            profile.setFirstName(readString(in));
+            profile.setLastName(readString(in));
+            profile.setFullName(readString(in));
+            profile.setDisplayName(readString(in));
+            profile.setEmail(readString(in));
+            profile.setGender(readString(in));
+            profile.setCountry(readString(in));
+            profile.setLanguage(readString(in));
+            profile.setLocation(readString(in));
+            profile.setProfileImageURL(readString(in));
+            if (in.readBoolean()) {
+                BirthDate dob = new BirthDate();
+                dob.setDay(in.readInt());
+                dob.setMonth(in.readInt());
+                dob.setYear(in.readInt());
+                profile.setDob(dob);
+            }
+        }
+
+        AccessGrant accessGrant = null;
+        if (in.readBoolean()) {
+            accessGrant = new AccessGrant(readString(in), readString(in));
+            accessGrant.setProviderId(readString(in));
+            String permission = readString(in);
+            for (Permission candidate : PERMISSIONS) {
+                if (candidate.toString().equals(permission)) {
+                    accessGrant.setPermission(candidate);
+                    break;
+                }
+            }
+            accessGrant.setAttributes(readAttributes(in));
+        }
+
+        return new SocialAuthGrant(provider, profile, accessGrant, expiry);
+    }
+
+    private static void writeAttributes(DataOutput out, Map<String, Object> attributes) throws IOException
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        if (attributes != null) {
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                if (attribute.getKey() != null && attribute.getValue() != null) {
+                    values.put(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+
+        out.writeInt(values.size());
+        for (Map.Entry<String, Object> attribute : values.entrySet()) {
+            out.writeUTF(attribute.getKey());
+            Object value = attribute.getValue();
+            if (value instanceof Integer) {
+                out.writeChar(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeChar(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                out.writeChar(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                // Any other value is kept as its string form
+                out.writeChar(STRING);
+                out.writeUTF(value.toString());
+            }
+        }
+    }
+
+    private static Map<String, Object> readAttributes(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            char type = in.readChar();
+            if (type == INTEGER) {
+                attributes.put(key, in.readInt());
+            } else if (type == LONG) {
+                attributes.put(key, in.readLong());
+            } else if (type == BOOLEAN) {
+                attributes.put(key, in.readBoolean());
+            } else if (type == STRING) {
+                attributes.put(key, in.readUTF());
+            } else {
+                throw new IOException("Unknown type [" + type + "] of the access grant attribute [" + key + "]");
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * @param out where to write the string
+     * @param value the string to write, may be <code>null</code>
+     * @throws IOException if the string cannot be written
+     */
+    static void writeString(DataOutput out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * @param in where to read the string from
+     * @return the string written by {@link #writeString(DataOutput, String)}, may be <code>null</code>
+     * @throws IOException if the string cannot be read
+     */
+    static String readString(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
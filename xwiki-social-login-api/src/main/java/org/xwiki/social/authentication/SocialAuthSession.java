@@ -19,29 +19,83 @@
  */
 package org.xwiki.social.authentication;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.StringUtils;
 import org.brickred.socialauth.AuthProvider;
 import org.brickred.socialauth.Profile;
 import org.brickred.socialauth.SocialAuthManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
 
-public class SocialAuthSession
+/**
+ * The social login state of a HTTP session. Only a compact form is serialized with the HTTP session (for session
+ * replication or persistence): the secret, the current provider, the resolved user and a {@link SocialAuthGrant} per
+ * connected provider, written field by field as strings and numbers, which fits in {@link #SERIALIZED_SIZE_BUDGET}
+ * for a session connected to one provider. Reading it back never instantiates classes named by the data. The profiles
+ * are snapshots
+ * taken when connecting, read without calling the providers, and refreshed explicitly (see
+ * {@link SocialAuthenticationManager#refreshProfile(String)}). The live {@link AuthProvider}
+ * objects are transient: after the session has been deserialized they are rebuilt from their grants, only when the
+ * provider API is actually needed (see {@link SocialAuthenticationManager#getAuthProvider(String)}).
+ * <p>
+ * A social session is shared by the concurrent requests of its HTTP session (parallel AJAX requests, several tabs).
+ * Its serialized state is an immutable value which every change replaces with a compare-and-set, so readers always see
+ * a consistent state (a grant with the provider it was recorded with, a user with its principal) and never wait.
+ *
+ * @version $Id$
+ */
+public class SocialAuthSession implements Serializable
 {
-    private String encryptedPassword;
+    /**
+     * The most bytes a serialized session connected to one provider should take, which session stores can rely on.
+     */
+    public static final int SERIALIZED_SIZE_BUDGET = 2048;
+
+    private static final long serialVersionUID = 3L;
 
-    private Map<String, AuthProvider> providers = new HashMap<String, AuthProvider>();
+    /** The version of the serialized form written by {@link #writeObject(ObjectOutputStream)}. */
+    private static final int FORMAT_VERSION = 1;
 
-    private SocialAuthManager authManager;
+    /** The serialized state of the session, replaced as a whole on each change, written by hand. */
+    private transient AtomicReference<State> state = new AtomicReference<State>(State.EMPTY);
 
-    private String currentProvider;
+    /** The live connections to the providers, by provider id, lost when the session is serialized. */
+    private transient ConcurrentMap<String, AuthProvider> providers = new ConcurrentHashMap<String, AuthProvider>();
 
+    private transient volatile SocialAuthManager authManager;
+
+    public SocialAuthSession()
+    {
+    }
+
+    /**
+     * @param authManager the OAuth manager of the handshake
+     * @deprecated the OAuth handshakes are not kept in the social sessions anymore, use {@link #SocialAuthSession()}
+     */
+    @Deprecated
     public SocialAuthSession(SocialAuthManager authManager)
     {
         this.authManager = authManager;
     }
 
+    /**
+     * @return the OAuth manager passed to {@link #SocialAuthSession(SocialAuthManager)}, <code>null</code> otherwise
+     * @deprecated the OAuth handshakes are not kept in the social sessions anymore
+     */
+    @Deprecated
     public SocialAuthManager getAuthManager()
     {
         return authManager;
@@ -49,56 +103,270 @@ public class SocialAuthSession
 
     public String getEncryptedPassword()
     {
-        return encryptedPassword;
+        return this.state.get().encryptedPassword;
     }
 
     public void setEncryptedPassword(String encryptedPassword)
     {
-        this.encryptedPassword = encryptedPassword;
+        State current;
+        do {
+            current = this.state.get();
+        } while (!this.state.compareAndSet(current, current.withEncryptedPassword(encryptedPassword)));
     }
 
+    /**
+     * @return a copy of the profile of the user on the current provider, <code>null</code> if it is not connected
+     */
     public Profile getProfile()
     {
-        if (StringUtils.isBlank(this.getCurrentProvider()) || !providers.containsKey(this.getCurrentProvider())) {
-            return null;
-        }
-        try {
-            return providers.get(this.getCurrentProvider()).getUserProfile();
-        } catch (Exception e) {
+        // Read the provider and its grant from the same state
+        State current = this.state.get();
+        if (StringUtils.isBlank(current.currentProvider)) {
             return null;
         }
+        SocialAuthGrant grant = current.grants.get(current.currentProvider);
+        return grant != null ? grant.getProfile() : null;
     }
 
+    /**
+     * @param provider a provider id
+     * @return a copy of the profile of the user on the provider, as it was when connecting or when last refreshed,
+     *         <code>null</code> if it is not connected
+     */
     public Profile getProfile(String provider)
     {
-        if (!providers.containsKey(provider)) {
-            return null;
-        }
-        try {
-            return providers.get(provider).getUserProfile();
-        } catch (Exception e) {
-            return null;
-        }
+        SocialAuthGrant grant = getGrant(provider);
+        return grant != null ? grant.getProfile() : null;
     }
 
+    /**
+     * @param provider a provider id
+     * @return the live connection to the provider, <code>null</code> if it is not connected or if the connection has
+     *         not been rebuilt since the session was deserialized
+     */
     public AuthProvider getAuthProvider(String provider)
     {
         return providers.get(provider);
     }
 
+    /**
+     * Records a new connection to a provider, its grant and a snapshot of the profile of the user, which is read from
+     * the provider once.
+     *
+     * @param provider the provider id
+     * @param manager the connection to the provider
+     */
     public void putAuthProvider(String provider, AuthProvider manager)
     {
+        Profile profile = null;
+        try {
+            profile = manager.getUserProfile();
+        } catch (Exception e) {
+            // Not known, the grant is enough to rebuild the connection
+        }
+        putAuthProvider(provider, manager, profile);
+    }
+
+    /**
+     * Records a connection to a provider, its grant and a snapshot of the passed profile.
+     *
+     * @param provider the provider id
+     * @param manager the connection to the provider
+     * @param profile the profile of the user on the provider
+     */
+    public void putAuthProvider(String provider, AuthProvider manager, Profile profile)
+    {
+        SocialAuthGrant grant = new SocialAuthGrant(provider, profile, manager.getAccessGrant());
+        State current;
+        do {
+            current = this.state.get();
+        } while (!this.state.compareAndSet(current, current.withGrant(provider, grant)));
         this.providers.put(provider, manager);
     }
 
+    /**
+     * Puts back a live connection rebuilt from the grant of a provider, after the session has been deserialized.
+     *
+     * @param provider the provider id
+     * @param manager the connection to the provider, rebuilt from {@link #getGrant(String)}
+     */
+    public void restoreAuthProvider(String provider, AuthProvider manager)
+    {
+        // Another request may have rebuilt it already, keep a single connection
+        this.providers.putIfAbsent(provider, manager);
+    }
+
+    /**
+     * @param provider a provider id
+     * @return the grant of the provider, <code>null</code> if it is not connected
+     */
+    public SocialAuthGrant getGrant(String provider)
+    {
+        return this.state.get().grants.get(provider);
+    }
+
+    /**
+     * @return the reference of the XWiki user this social session has been resolved to, <code>null</code> if it has
+     *         not been resolved yet
+     */
+    public DocumentReference getUser()
+    {
+        return this.state.get().user;
+    }
+
+    /**
+     * @return the name of the principal of the user this social session has been resolved to (the prefixed full name
+     *         of its document), <code>null</code> if it has not been resolved yet
+     */
+    public String getPrincipal()
+    {
+        return this.state.get().principal;
+    }
+
+    /**
+     * Binds this social session to the XWiki user it has been resolved to. A session is bound once: binding it again
+     * to the same user has no effect, binding it to another user is refused.
+     * 
+     * @param user the reference of the document of the user
+     * @param principal the name of the principal of the user
+     * @throws IllegalStateException if the session is already bound to another user
+     */
+    public void bindUser(DocumentReference user, String principal)
+    {
+        State current;
+        do {
+            current = this.state.get();
+            if (current.user != null) {
+                if (!current.user.equals(user)) {
+                    throw new IllegalStateException("The social session is already bound to user [" + current.user
+                        + "]");
+                }
+                return;
+            }
+        } while (!this.state.compareAndSet(current, current.withUser(user, principal)));
+    }
+
     public String getCurrentProvider()
     {
-        return currentProvider;
+        return this.state.get().currentProvider;
     }
 
     public void setCurrentProvider(String currentProvider)
     {
-        this.currentProvider = currentProvider;
+        State current;
+        do {
+            current = this.state.get();
+        } while (!this.state.compareAndSet(current, current.withCurrentProvider(currentProvider)));
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+
+        State current = this.state.get();
+        out.writeInt(FORMAT_VERSION);
+        SocialAuthGrant.writeString(out, current.encryptedPassword);
+        SocialAuthGrant.writeString(out, current.currentProvider);
+        SocialAuthGrant.writeString(out, current.principal);
+        out.writeBoolean(current.user != null);
+        if (current.user != null) {
+            SocialAuthGrant.writeString(out, current.user.getWikiReference().getName());
+            List<SpaceReference> spaces = current.user.getSpaceReferences();
+            out.writeInt(spaces.size());
+            for (SpaceReference space : spaces) {
+                SocialAuthGrant.writeString(out, space.getName());
+            }
+            SocialAuthGrant.writeString(out, current.user.getName());
+        }
+        out.writeInt(current.grants.size());
+        for (SocialAuthGrant grant : current.grants.values()) {
+            grant.write(out);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unknown social session format [" + version + "]");
+        }
+        String encryptedPassword = SocialAuthGrant.readString(in);
+        String currentProvider = SocialAuthGrant.readString(in);
+        String principal = SocialAuthGrant.readString(in);
+        DocumentReference user = null;
+        if (in.readBoolean()) {
+            String wiki = SocialAuthGrant.readString(in);
+            int spaceCount = in.readInt();
+            List<String> spaces = new ArrayList<String>(spaceCount);
+            for (int i = 0; i < spaceCount; i++) {
+                spaces.add(SocialAuthGrant.readString(in));
+            }
+            user = new DocumentReference(wiki, spaces, SocialAuthGrant.readString(in));
+        }
+        int grantCount = in.readInt();
+        Map<String, SocialAuthGrant> grants = new HashMap<String, SocialAuthGrant>();
+        for (int i = 0; i < grantCount; i++) {
+            SocialAuthGrant grant = SocialAuthGrant.read(in);
+            grants.put(grant.getProvider(), grant);
+        }
+
+        this.state = new AtomicReference<State>(new State(encryptedPassword, currentProvider, user, principal,
+            Collections.unmodifiableMap(grants)));
+        this.providers = new ConcurrentHashMap<String, AuthProvider>();
     }
 
+    /**
+     * An immutable state of a social session. Each change creates a new state, sharing the unchanged values.
+     */
+    private static final class State
+    {
+        private static final State EMPTY =
+            new State(null, null, null, null, Collections.<String, SocialAuthGrant> emptyMap());
+
+        private final String encryptedPassword;
+
+        private final String currentProvider;
+
+        private final DocumentReference user;
+
+        private final String principal;
+
+        /** The grants of the connected providers, by provider id, never modified. */
+        private final Map<String, SocialAuthGrant> grants;
+
+        private State(String encryptedPassword, String currentProvider, DocumentReference user, String principal,
+            Map<String, SocialAuthGrant> grants)
+        {
+            this.encryptedPassword = encryptedPassword;
+            this.currentProvider = currentProvider;
+            this.user = user;
+            this.principal = principal;
+            this.grants = grants;
+        }
+
+        private State withEncryptedPassword(String newEncryptedPassword)
+        {
+            return new State(newEncryptedPassword, this.currentProvider, this.user, this.principal, this.grants);
+        }
+
+        private State withCurrentProvider(String newCurrentProvider)
+        {
+            return new State(this.encryptedPassword, newCurrentProvider, this.user, this.principal, this.grants);
+        }
+
+        private State withUser(DocumentReference newUser, String newPrincipal)
+        {
+            return new State(this.encryptedPassword, this.currentProvider, newUser, newPrincipal, this.grants);
+        }
+
+        private State withGrant(String provider, SocialAuthGrant grant)
+        {
+            Map<String, SocialAuthGrant> newGrants = new HashMap<String, SocialAuthGrant>(this.grants);
+            newGrants.put(provider, grant);
+            return new State(this.encryptedPassword, this.currentProvider, this.user, this.principal,
+                Collections.unmodifiableMap(newGrants));
+        }
+    }
 }
@@ -21,6 +21,8 @@ package org.xwiki.social.authentication;
 
 import java.util.Map;
 
+import org.brickred.socialauth.AuthProvider;
+import org.brickred.socialauth.Profile;
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.reference.DocumentReference;
 
@@ -62,11 +64,38 @@ public interface SocialAuthenticationManager
     boolean hasProvider(DocumentReference user, String provider);
 
     /**
-     * @return the current social authentication session, if it exists, <code>null</code> otherwise.
+     * Looks up the social authentication session of the current request. This never creates a HTTP session, so it can
+     * be called on every request, including anonymous ones, without allocating a session for each of them.
+     * 
+     * @return the current social authentication session, if it exists, <code>null</code> otherwise (including when
+     *         the request has no HTTP session).
      */
     SocialAuthSession getSession();
 
     /**
+     * Forgets the social authentication session of the current request, if it has one.
+     */
+    void removeSession();
+
+    /**
+     * Binds a social authentication session of the current request to the XWiki user it has been resolved to, and
+     * saves it in the session store.
+     * 
+     * @param session the social authentication session of the current request
+     * @param user the reference of the document of the user
+     * @return the name of the principal of the user, serialized the same way whatever the caller
+     * @throws IllegalStateException if the session is already bound to another user
+     */
+    String bindUser(SocialAuthSession session, DocumentReference user);
+
+    /**
+     * @return the number of calls to the OAuth providers waiting for a thread of the configured callback executor
+     */
+    int getCallbackQueueSize();
+
+    /**
+     * Like {@link #getSession()}, this never creates a HTTP session.
+     * 
      * @return <code>true</code> if the context user has a social session with any provider successfully connected,
      *         <code>false</code> otherwise.
      */
@@ -79,11 +108,34 @@ public interface SocialAuthenticationManager
      */
     boolean isConnected(String provider);
 
+    /**
+     * Gets the live connection to a provider the social session is connected to. After the session has been
+     * deserialized (session replication or persistence), the connection is rebuilt from its grant on the first call.
+     *
+     * @param provider the provider id
+     * @return the connection to the provider, <code>null</code> if the session is not connected to it or if its grant
+     *         has expired
+     * @throws SocialAuthException if the connection cannot be rebuilt
+     */
+    AuthProvider getAuthProvider(String provider) throws SocialAuthException;
+
+    /**
+     * Fetches the profile of the user from a provider the social session is connected to, and replaces the snapshot of
+     * the profile kept in the session, which is otherwise the one taken when connecting.
+     *
+     * @param provider the provider id
+     * @return the new profile, <code>null</code> if the session is not connected to the provider or if its grant has
+     *         expired
+     * @throws SocialAuthException if the profile cannot be fetched
+     */
+    Profile refreshProfile(String provider) throws SocialAuthException;
+
     /**
      * Requests an attempt at connecting with a social auth (OAuth) end point. This redirects to a third-party OAuth
      * end-point to verify authorization. If the user has already granted permission for our application, then it
      * redirects back to our site directly (with authorization payload), otherwise it requires the user to grant this
-     * authorization, before redirecting back.
+     * authorization, before redirecting back. The state of the handshake is kept for a limited time, out of the HTTP
+     * session, until the user comes back.
      * 
      * @param provider the provider to request the connection with
      * @param returnUrl the URL to provide as a return URL from the social site/OAuth end-point.
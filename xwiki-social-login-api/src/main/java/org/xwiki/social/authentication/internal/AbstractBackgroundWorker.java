@@ -0,0 +1,265 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiServletRequestStub;
+
+/**
+ * Base class for the components doing work in the background, out of the requests. Work items are run one at a time
+ * by a single daemon thread, each in its own XWiki context, with retries and a bounded number of pending items.
+ *
+ * @param <T> the type of the work items
+ * @version $Id$
+ */
+public abstract class AbstractBackgroundWorker<T> implements Initializable, Disposable
+{
+    @Inject
+    protected Logger logger;
+
+    @Inject
+    protected Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /** Runs the work items, and the periodic tasks of the subclasses. */
+    private ScheduledExecutorService executor;
+
+    /** Bounds the number of pending work items, retries included. */
+    private Semaphore capacity;
+
+    /** The XWiki instance, taken from the requests submitting work. */
+    private volatile XWiki xwiki;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.capacity = new Semaphore(getCapacity());
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Queues a work item, to be run as soon as possible.
+     *
+     * @param item the work item
+     * @param wiki the wiki to run the work item in
+     * @return <code>false</code> if the item is refused because too many are pending
+     */
+    protected boolean submit(T item, String wiki)
+    {
+        if (!this.capacity.tryAcquire()) {
+            this.logger.warn("Too many pending tasks in [{}], dropping [{}]", getName(), item);
+            return false;
+        }
+        captureXWiki();
+        schedule(new WorkItem(item, wiki), 0);
+        return true;
+    }
+
+    /**
+     * Keeps the XWiki instance of the current request, if there is one, for the contexts of the background work.
+     */
+    protected void captureXWiki()
+    {
+        XWikiContext context = getXWikiContext();
+        if (context != null) {
+            this.xwiki = context.getWiki();
+        }
+    }
+
+    /**
+     * @return the executor running the work items, to schedule periodic tasks on the same thread
+     */
+    protected ScheduledExecutorService getExecutor()
+    {
+        return this.executor;
+    }
+
+    /**
+     * @return the name of the background thread
+     */
+    protected abstract String getName();
+
+    /**
+     * @return the maximum number of pending work items
+     */
+    protected abstract int getCapacity();
+
+    /**
+     * @return the maximum number of attempts for a work item
+     */
+    protected abstract int getMaxAttempts();
+
+    /**
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @return the delay before the next attempt, in milliseconds
+     */
+    protected long getRetryDelay(int attempt)
+    {
+        return 5000L << (attempt - 1);
+    }
+
+    /**
+     * Does the work for an item, in the XWiki context of its wiki.
+     *
+     * @param item the work item
+     * @param context the XWiki context, which has no real request
+     * @throws Exception if the work failed and should be tried again
+     */
+    protected abstract void process(T item, XWikiContext context) throws Exception;
+
+    /**
+     * Runs a task in a new XWiki context for the passed wiki, from the background thread.
+     *
+     * @param wiki the wiki to run the task in
+     * @param task the task to run
+     * @throws Exception if the task fails
+     */
+    protected void runInContext(String wiki, ContextualTask task) throws Exception
+    {
+        if (this.xwiki == null) {
+            // No request submitted work yet, nothing to do
+            return;
+        }
+
+        ExecutionContext executionContext = new ExecutionContext();
+        XWikiContext context = new XWikiContext();
+        context.setWiki(this.xwiki);
+        context.setMainXWiki(this.xwiki.getDatabase());
+        context.setDatabase(wiki);
+        context.setRequest(new XWikiServletRequestStub());
+        executionContext.setProperty("xwikicontext", context);
+
+        this.execution.setContext(executionContext);
+        try {
+            this.executionContextManager.initialize(executionContext);
+            task.run(context);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    /**
+     * @return the XWiki context of the current request, <code>null</code> when called from the background thread out
+     *         of a task
+     */
+    protected XWikiContext getXWikiContext()
+    {
+        ExecutionContext executionContext = this.execution.getContext();
+        return executionContext != null ? (XWikiContext) executionContext.getProperty("xwikicontext") : null;
+    }
+
+    private void schedule(WorkItem workItem, long delay)
+    {
+        this.executor.schedule(workItem, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A task needing a XWiki context.
+     */
+    protected interface ContextualTask
+    {
+        /**
+         * @param context the XWiki context to run in
+         * @throws Exception if the task fails
+         */
+        void run(XWikiContext context) throws Exception;
+    }
+
+    /**
+     * A work item, with the number of attempts done.
+     */
+    private final class WorkItem implements Runnable, ContextualTask
+    {
+        private final T item;
+
+        private final String wiki;
+
+        private int attempts;
+
+        WorkItem(T item, String wiki)
+        {
+            this.item = item;
+            this.wiki = wiki;
+        }
+
+        @Override
+        public void run()
+        {
+            this.attempts++;
+            boolean done = true;
+            try {
+                runInContext(this.wiki, this);
+            } catch (Exception e) {
+                if (this.attempts < getMaxAttempts()) {
+                    logger.debug("Attempt [{}] failed for [{}], trying again later: {}", new Object[] {this.attempts,
+                        this.item, e.getMessage()});
+                    done = false;
+                    schedule(this, getRetryDelay(this.attempts));
+                } else {
+                    logger.warn("Giving up on [{}] after [{}] attempts", new Object[] {this.item, this.attempts, e});
+                }
+            } finally {
+                if (done) {
+                    capacity.release();
+                }
+            }
+        }
+
+        @Override
+        public void run(XWikiContext context) throws Exception
+        {
+            process(this.item, context);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+import org.xwiki.social.authentication.SocialAuthException;
+
+/**
+ * Base class for {@link OAuthCallbackExecutor} implementations, handling the timeouts and the failures of the tasks.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractOAuthCallbackExecutor implements OAuthCallbackExecutor
+{
+    @Inject
+    protected SocialAuthConfiguration configuration;
+
+    @Override
+    public <T> T execute(String provider, Callable<T> task) throws SocialAuthException
+    {
+        Future<T> future;
+        try {
+            future = submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new SocialAuthException("Too many pending calls to OAuth providers, refusing call to ["
+                + provider + "]", e);
+        }
+
+        try {
+            return future.get(this.configuration.getCallbackTimeout(provider), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new SocialAuthException("Call to OAuth provider [" + provider + "] timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SocialAuthException("Interrupted while calling OAuth provider [" + provider + "]", e);
+        } catch (ExecutionException e) {
+            throw new SocialAuthException("Call to OAuth provider [" + provider + "] failed", e.getCause());
+        }
+    }
+
+    /**
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @return the future result of the task
+     * @throws RejectedExecutionException if the task can't be accepted
+     */
+    protected abstract <T> Future<T> submit(Callable<T> task);
+
+    /**
+     * @param name the prefix of the names of the threads
+     * @return a factory of daemon threads
+     */
+    protected ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name + " " + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Imports the profile pictures of the social profiles as avatars of the XWiki users, in the background, so that
+ * downloading the picture doesn't delay the login. Imported pictures are downscaled and re-encoded, and refreshed
+ * with conditional requests on the following logins.
+ *
+ * @version $Id$
+ */
+@Role
+public interface AvatarImporter
+{
+    /**
+     * Queues the import or the refresh of a profile picture. The picture is attached to the user profile and set as
+     * its avatar, unless the user has chosen another avatar by then.
+     *
+     * @param user the user to import the picture for
+     * @param provider the provider of the social profile the picture comes from
+     * @param url the URL of the picture
+     * @return <code>false</code> if the import is refused because too many are pending
+     */
+    boolean importAvatar(DocumentReference user, String provider, String url);
+}
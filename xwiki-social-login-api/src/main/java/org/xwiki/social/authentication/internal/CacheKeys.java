@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+/**
+ * Builds the keys of the caches and maps of the social login module out of several parts.
+ *
+ * @version $Id$
+ */
+final class CacheKeys
+{
+    /** Private Constructor since this is a utility class. */
+    private CacheKeys()
+    {
+    }
+
+    /**
+     * Joins the parts of a key. Every part but the last is prefixed with its length, which keeps the key unambiguous
+     * whatever the characters in the parts.
+     *
+     * @param parts the parts of the key, not <code>null</code>
+     * @return the key
+     */
+    static String getKey(String... parts)
+    {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < parts.length - 1; i++) {
+            key.append(parts[i].length()).append(':').append(parts[i]);
+        }
+        if (parts.length > 0) {
+            key.append(parts[parts.length - 1]);
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+import org.xwiki.social.authentication.SocialAuthConstants;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Default {@link AvatarImporter}. Pictures are downloaded with the shared HTTP client, failed downloads are tried again
+ * a few times with an increasing delay.
+ * <p>
+ * Pictures are downscaled to the configured maximum dimensions and re-encoded as JPEG. The hash of the result and the
+ * <tt>ETag</tt> and <tt>Last-Modified</tt> validators of the response are kept in the social profile, so that a refresh
+ * sends a conditional request, and a picture which comes back identical doesn't cause a new attachment version.
+ * </p>
+ * <p>
+ * Responses are streamed to a temporary file and refused as soon as they are not announced as images or exceed the
+ * configured size, and pictures whose dimensions are too large are refused before being decoded. Large pictures are
+ * subsampled while being decoded, so only a small image is ever held in memory.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultAvatarImporter extends AbstractBackgroundWorker<DefaultAvatarImporter.AvatarImport> implements
+    AvatarImporter, SocialAuthConstants
+{
+    private static final String DEFAULT_PROFILE_PICTURE_FILENAME = "profile.jpg";
+
+    private static final String AVATAR = "avatar";
+
+    private static final String AVATAR_HASH = "avatarHash";
+
+    private static final String AVATAR_ETAG = "avatarETag";
+
+    private static final String AVATAR_LAST_MODIFIED = "avatarLastModified";
+
+    private static final String ETAG = "ETag";
+
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    private static final String IMAGE_FORMAT = "jpg";
+
+    private static final int CAPACITY = 1000;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Maximum number of pixels of a picture to decode. */
+    private static final long MAX_PIXELS = 25000000L;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Inject
+    private SocialHttpClientProvider httpClientProvider;
+
+    @Inject
+    private SocialAuthConfiguration configuration;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private Environment environment;
+
+    @Override
+    public boolean importAvatar(DocumentReference user, String provider, String url)
+    {
+        return submit(new AvatarImport(user, provider, url), user.getWikiReference().getName());
+    }
+
+    @Override
+    protected String getName()
+    {
+        return "Social login avatar import";
+    }
+
+    @Override
+    protected int getCapacity()
+    {
+        return CAPACITY;
+    }
+
+    @Override
+    protected int getMaxAttempts()
+    {
+        return MAX_ATTEMPTS;
+    }
+
+    @Override
+    protected void process(AvatarImport avatarImport, XWikiContext context) throws Exception
+    {
+        XWikiDocument userDoc = context.getWiki().getDocument(avatarImport.user, context);
+        BaseObject userObject = userDoc.getXObject(XWIKI_USER_CLASS_REF, false, context);
+        BaseObject profileObject = userDoc.getXObject(SOCIAL_LOGIN_PROFILE_CLASS, "provider", avatarImport.provider);
+        if (userObject == null || profileObject == null) {
+            // The user or its social profile has been deleted in the meantime
+            return;
+        }
+
+        String avatar = userObject.getStringValue(AVATAR);
+        XWikiAttachment attachment = userDoc.getAttachment(DEFAULT_PROFILE_PICTURE_FILENAME);
+        // A refresh only replaces a picture previously imported from this profile
+        boolean isRefresh =
+            DEFAULT_PROFILE_PICTURE_FILENAME.equals(avatar) && attachment != null
+                && !StringUtils.isBlank(profileObject.getStringValue(AVATAR_HASH));
+        if (!StringUtils.isBlank(avatar) && !isRefresh) {
+            // The user has chosen another avatar
+            return;
+        }
+
+        GetMethod get = new GetMethod(avatarImport.url);
+        try {
+            if (isRefresh) {
+                setRequestHeader(get, "If-None-Match", profileObject.getStringValue(AVATAR_ETAG));
+                setRequestHeader(get, "If-Modified-Since", profileObject.getStringValue(AVATAR_LAST_MODIFIED));
+            }
+
+            int httpStatus = this.httpClientProvider.getHttpClient().executeMethod(get);
+            if (httpStatus == HttpStatus.SC_NOT_MODIFIED) {
+                return;
+            } else if (httpStatus >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                throw new IOException("Failed to load image: status is " + httpStatus);
+            } else if (httpStatus != HttpStatus.SC_OK) {
+                // Not worth trying again
+                this.logger.debug("Failed to load image: status is " + httpStatus);
+                return;
+            }
+
+            byte[] picture = null;
+            File file = download(get, avatarImport.url);
+            if (file != null) {
+                try {
+                    picture = downscale(file);
+                } finally {
+                    file.delete();
+                }
+            }
+            if (picture == null) {
+                this.logger.debug("Refused profile picture [{}]", avatarImport.url);
+                return;
+            }
+            String hash = DigestUtils.sha256Hex(picture);
+            if (isRefresh && hash.equals(profileObject.getStringValue(AVATAR_HASH))) {
+                // Same picture served with new validators, not worth a new version of the profile
+                return;
+            }
+
+            if (attachment == null) {
+                attachment = new XWikiAttachment(userDoc, DEFAULT_PROFILE_PICTURE_FILENAME);
+                userDoc.getAttachmentList().add(attachment);
+            }
+            attachment.setContent(picture);
+            attachment.setAuthor(userDoc.getAuthor());
+            attachment.setDoc(userDoc);
+            userObject.set(AVATAR, DEFAULT_PROFILE_PICTURE_FILENAME, context);
+            profileObject.set(AVATAR_HASH, hash, context);
+            profileObject.set(AVATAR_ETAG, getResponseHeader(get, ETAG), context);
+            profileObject.set(AVATAR_LAST_MODIFIED, getResponseHeader(get, LAST_MODIFIED), context);
+
+            // The user imports its own picture
+            context.setUser(this.serializer.serialize(avatarImport.user));
+            context.getWiki().saveDocument(userDoc, "Imported social profile picture", true, context);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Copies the response to a temporary file, checking its type and size as it goes.
+     *
+     * @param get the executed request
+     * @param url the URL of the picture, for logging
+     * @return the temporary file holding the response, <code>null</code> if the response is refused
+     * @throws IOException if the response cannot be read
+     */
+    File download(GetMethod get, String url) throws IOException
+    {
+        String contentType = getResponseHeader(get, "Content-Type");
+        if (!StringUtils.startsWithIgnoreCase(contentType, "image/")) {
+            this.logger.debug("Profile picture [{}] has content type [{}]", url, contentType);
+            return null;
+        }
+        int maxSize = this.configuration.getAvatarMaxSize();
+        if (get.getResponseContentLength() > maxSize) {
+            this.logger.debug("Profile picture [{}] is larger than [{}] bytes", url, maxSize);
+            get.abort();
+            return null;
+        }
+
+        File file = File.createTempFile("avatar", ".tmp", this.environment.getTemporaryDirectory());
+        boolean complete = false;
+        InputStream input = get.getResponseBodyAsStream();
+        OutputStream output = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                size += count;
+                if (size > maxSize) {
+                    // The announced length was missing or wrong, don't read the rest
+                    this.logger.debug("Profile picture [{}] is larger than [{}] bytes", url, maxSize);
+                    get.abort();
+                    return null;
+                }
+                output.write(buffer, 0, count);
+            }
+            complete = true;
+            return file;
+        } finally {
+            IOUtils.closeQuietly(output);
+            IOUtils.closeQuietly(input);
+            if (!complete) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param file the picture as downloaded
+     * @return the picture scaled down to fit in the configured dimensions and encoded as JPEG, <code>null</code> if
+     *         the file is not a readable image or is too large to decode
+     * @throws IOException if the picture cannot be read or encoded
+     */
+    byte[] downscale(File file) throws IOException
+    {
+        BufferedImage image;
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                // Reading the dimensions only reads the header of the image
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                if ((long) sourceWidth * sourceHeight > MAX_PIXELS) {
+                    return null;
+                }
+
+                // Skip pixels while decoding rather than holding the full size image in memory
+                int subsampling =
+                    Math.max(1, Math.min(sourceWidth / this.configuration.getAvatarMaxWidth(), sourceHeight
+                        / this.configuration.getAvatarMaxHeight()));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+
+        double scale =
+            Math.min(1.0, Math.min((double) this.configuration.getAvatarMaxWidth() / image.getWidth(),
+                (double) this.configuration.getAvatarMaxHeight() / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        // JPEG has no transparency, transparent pixels end up white
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(scaled, IMAGE_FORMAT, output);
+        return output.toByteArray();
+    }
+
+    private void setRequestHeader(GetMethod get, String name, String value)
+    {
+        if (!StringUtils.isBlank(value)) {
+            get.setRequestHeader(name, value);
+        }
+    }
+
+    private String getResponseHeader(GetMethod get, String name)
+    {
+        Header header = get.getResponseHeader(name);
+        return header != null ? header.getValue() : "";
+    }
+
+    /**
+     * A profile picture to import.
+     */
+    static final class AvatarImport
+    {
+        private final DocumentReference user;
+
+        private final String provider;
+
+        private final String url;
+
+        AvatarImport(DocumentReference user, String provider, String url)
+        {
+            this.user = user;
+            this.provider = provider;
+            this.url = url;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "avatar of [" + this.user + "] from [" + this.url + "]";
+        }
+    }
+}
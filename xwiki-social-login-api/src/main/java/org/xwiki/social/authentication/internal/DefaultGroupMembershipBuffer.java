@@ -0,0 +1,327 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Default {@link GroupMembershipBuffer}. New members are appended to a queue which is drained every few seconds: the
+ * members queued for the same group are added to the group document with a single save, run as a work item of the
+ * background thread, with retries. The members still queued when the component is disposed are saved on the
+ * background thread before it stops, within {@value #DISPOSE_TIMEOUT} seconds.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultGroupMembershipBuffer extends AbstractBackgroundWorker<DefaultGroupMembershipBuffer.GroupUpdate>
+    implements GroupMembershipBuffer
+{
+    private static final String ALL_GROUP_IMPLICIT_KEY = "xwiki.authentication.group.allgroupimplicit";
+
+    private static final String INITIAL_GROUPS_KEY = "xwiki.users.initialGroups";
+
+    private static final String DEFAULT_INITIAL_GROUPS = "XWiki.XWikiAllGroup";
+
+    private static final String MEMBER = "member";
+
+    /** Number of seconds between two flushes of the queued members. */
+    private static final long FLUSH_INTERVAL = 2;
+
+    private static final int CAPACITY = 100;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Maximum number of seconds to wait for the last members to be saved when the component is disposed. */
+    private static final long DISPOSE_TIMEOUT = 30;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    /** The members waiting for the next flush. */
+    private final Queue<Membership> pending = new ConcurrentLinkedQueue<Membership>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        super.initialize();
+        getExecutor().scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        // Don't lose the members queued since the last flush. They are saved on the background thread, so that the
+        // execution context of the thread disposing the component is left alone.
+        Future<?> lastFlush = getExecutor().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                saveNow();
+            }
+        });
+        try {
+            lastFlush.get(DISPOSE_TIMEOUT, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            this.logger.warn("Failed to save the members queued for the initial groups: {}", e.getMessage());
+        }
+        super.dispose();
+    }
+
+    @Override
+    public void addMember(DocumentReference user)
+    {
+        XWikiContext context = getXWikiContext();
+        String currentDatabase = context.getDatabase();
+        context.setDatabase(user.getWikiReference().getName());
+        try {
+            String member = this.localSerializer.serialize(user);
+            for (String group : getInitialGroups(context)) {
+                queue(this.resolver.resolve(group), member);
+            }
+        } finally {
+            context.setDatabase(currentDatabase);
+        }
+        captureXWiki();
+    }
+
+    @Override
+    protected String getName()
+    {
+        return "Social login group membership";
+    }
+
+    @Override
+    protected int getCapacity()
+    {
+        return CAPACITY;
+    }
+
+    @Override
+    protected int getMaxAttempts()
+    {
+        return MAX_ATTEMPTS;
+    }
+
+    @Override
+    protected void process(GroupUpdate update, XWikiContext context) throws Exception
+    {
+        XWikiDocument groupDoc = context.getWiki().getDocument(update.group, context);
+        DocumentReference groupClass = context.getWiki().getGroupClass(context).getDocumentReference();
+
+        Set<String> currentMembers = new HashSet<String>();
+        List<BaseObject> objects = groupDoc.getXObjects(groupClass);
+        if (objects != null) {
+            for (BaseObject object : objects) {
+                if (object != null) {
+                    currentMembers.add(object.getStringValue(MEMBER));
+                }
+            }
+        }
+        Set<String> members = getNewMembers(update.members, currentMembers);
+        if (members.isEmpty()) {
+            return;
+        }
+
+        for (String member : members) {
+            BaseObject object = groupDoc.newXObject(groupClass, context);
+            object.setStringValue(MEMBER, member);
+        }
+        context.getWiki().saveDocument(groupDoc, context.getMessageTool().get("core.comment.addedUserToGroup"),
+            context);
+    }
+
+    /**
+     * @param queuedMembers the members queued for a group
+     * @param currentMembers the members the group already has
+     * @return the queued members to add to the group, in the order they were queued, without those already added by
+     *         a previous attempt or by somebody else
+     */
+    static Set<String> getNewMembers(Collection<String> queuedMembers, Collection<String> currentMembers)
+    {
+        Set<String> members = new LinkedHashSet<String>(queuedMembers);
+        members.removeAll(currentMembers);
+        return members;
+    }
+
+    /**
+     * @return the groups new users of the current wiki are added to, the same as
+     *         {@link com.xpn.xwiki.XWiki#setUserDefaultGroup(String, XWikiContext)}
+     */
+    private String[] getInitialGroups(XWikiContext context)
+    {
+        String groups;
+        if ("1".equals(context.getWiki().Param(ALL_GROUP_IMPLICIT_KEY))) {
+            // All users are members anyway, no need to list them
+            groups = context.getWiki().Param(INITIAL_GROUPS_KEY);
+        } else {
+            groups = context.getWiki().Param(INITIAL_GROUPS_KEY, DEFAULT_INITIAL_GROUPS);
+        }
+        return StringUtils.split(StringUtils.defaultString(groups), ", ");
+    }
+
+    /**
+     * Queues a member for the next flush.
+     *
+     * @param group the group to add the member to
+     * @param member the local name of the user document
+     */
+    void queue(DocumentReference group, String member)
+    {
+        this.pending.add(new Membership(group, member));
+    }
+
+    /**
+     * Saves the members queued since the last flush, from the background thread, without retries.
+     */
+    private void saveNow()
+    {
+        for (final GroupUpdate update : drain()) {
+            try {
+                runInContext(update.group.getWikiReference().getName(), new ContextualTask()
+                {
+                    @Override
+                    public void run(XWikiContext context) throws Exception
+                    {
+                        process(update, context);
+                    }
+                });
+            } catch (Exception e) {
+                this.logger.warn("Failed to save [{}]", update, e);
+            }
+        }
+    }
+
+    /**
+     * Submits the members queued since the last flush, one work item per group.
+     */
+    private void flush()
+    {
+        for (GroupUpdate update : drain()) {
+            if (!submit(update, update.group.getWikiReference().getName())) {
+                // Too many group saves pending, keep the members for the next flush
+                for (String member : update.members) {
+                    queue(update.group, member);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the members queued since the last flush, grouped by group
+     */
+    List<GroupUpdate> drain()
+    {
+        Map<DocumentReference, GroupUpdate> updates = new LinkedHashMap<DocumentReference, GroupUpdate>();
+        for (Membership membership = this.pending.poll(); membership != null; membership = this.pending.poll()) {
+            GroupUpdate update = updates.get(membership.group);
+            if (update == null) {
+                update = new GroupUpdate(membership.group);
+                updates.put(membership.group, update);
+            }
+            update.members.add(membership.member);
+        }
+        return new ArrayList<GroupUpdate>(updates.values());
+    }
+
+    /**
+     * A member to add to a group.
+     */
+    private static final class Membership
+    {
+        private final DocumentReference group;
+
+        private final String member;
+
+        Membership(DocumentReference group, String member)
+        {
+            this.group = group;
+            this.member = member;
+        }
+    }
+
+    /**
+     * The members to add to a group with a single save.
+     */
+    static final class GroupUpdate
+    {
+        private final DocumentReference group;
+
+        private final List<String> members = new ArrayList<String>();
+
+        GroupUpdate(DocumentReference group)
+        {
+            this.group = group;
+        }
+
+        DocumentReference getGroup()
+        {
+            return this.group;
+        }
+
+        List<String> getMembers()
+        {
+            return this.members;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.members.size() + " new members of [" + this.group + "]";
+        }
+    }
+}
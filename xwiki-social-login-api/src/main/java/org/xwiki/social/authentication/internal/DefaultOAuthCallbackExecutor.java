@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * {@link OAuthCallbackExecutor} backed by a bounded thread pool with a bounded queue. Tasks submitted when the queue
+ * is full are refused.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultOAuthCallbackExecutor extends AbstractOAuthCallbackExecutor implements Initializable, Disposable
+{
+    /** Time after which idle threads are stopped, in seconds. */
+    private static final long KEEP_ALIVE = 60;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int threads = Math.max(1, this.configuration.getCallbackThreads());
+        this.executor =
+            new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                Math.max(1, this.configuration.getCallbackQueueSize())), newThreadFactory("OAuth callback"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    protected <T> Future<T> submit(Callable<T> task)
+    {
+        return this.executor.submit(task);
+    }
+
+    @Override
+    public int getQueueSize()
+    {
+        return this.executor.getQueue().size();
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReferenceValueProvider;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link OAuthConsumerConfigurationProvider}. The base configuration is read from
+ * <tt>/WEB-INF/oauth_consumer.properties</tt>. The file is loaded on first use, and its modification date is then
+ * checked every few seconds by a background thread, which loads a new snapshot and publishes it at once when the file
+ * changes. A file which fails to load leaves the previous snapshot in place.
+ * <p>
+ * Each wiki can override properties of the file in its <tt>XWiki.SocialLoginConsumerConfiguration</tt> document, which
+ * only the administrators can view. The snapshot of a wiki is built on the first login in that wiki and kept in a
+ * bounded LRU cache, until its consumer configuration document or the file changes. A snapshot built while a document
+ * or the file changes is not cached, since it may have been built from the previous configuration.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultOAuthConsumerConfigurationProvider implements OAuthConsumerConfigurationProvider, Initializable,
+    Disposable
+{
+    private static final String PATH = "/WEB-INF/oauth_consumer.properties";
+
+    private static final String GLOBAL_CONFIGURATION_KEY = "xwiki.authentication.socialLogin.globalConfiguration";
+
+    private static final String CACHE_ID = "socialauth.oauthconsumers";
+
+    private static final int CACHE_SIZE = 100;
+
+    /** Number of seconds between two checks of the modification date of the file. */
+    private static final long CHECK_INTERVAL = 10;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private EntityReferenceValueProvider valueProvider;
+
+    @Inject
+    private SocialAuthConfiguration socialAuthConfiguration;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    /** The snapshots of the file. */
+    private volatile OAuthConsumerConfiguration configuration;
+
+    /** The properties of the file, which the wikis override. */
+    private volatile Properties properties;
+
+    /** The modification date of the loaded file, guarded by this. */
+    private long lastModified;
+
+    /** The snapshots of the wikis, by wiki, the snapshot of the file for the wikis which don't override it. */
+    private Cache<OAuthConsumerConfiguration> wikiConfigurations;
+
+    /** Incremented by each invalidation, so that the snapshots built meanwhile are not cached. */
+    private final AtomicLong generation = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.wikiConfigurations = this.cacheManager.createNewCache(cacheConfiguration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the OAuth consumer configuration cache", e);
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Social login configuration reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                checkForChanges();
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.scheduler.shutdownNow();
+    }
+
+    @Override
+    public OAuthConsumerConfiguration getConfiguration()
+    {
+        String wiki = getConfigurationWiki();
+        OAuthConsumerConfiguration wikiConfiguration = this.wikiConfigurations.get(wiki);
+        if (wikiConfiguration == null) {
+            // Load the file first, its first load invalidates the snapshots
+            getFileConfiguration();
+            long loadGeneration = this.generation.get();
+            wikiConfiguration = loadWikiConfiguration(wiki);
+            if (wikiConfiguration != null) {
+                cache(wiki, wikiConfiguration, loadGeneration);
+            }
+        }
+        return wikiConfiguration;
+    }
+
+    @Override
+    public void invalidate(String wiki)
+    {
+        this.generation.incrementAndGet();
+        this.wikiConfigurations.remove(wiki);
+    }
+
+    /**
+     * Caches the snapshot of a wiki, unless a configuration has changed since it started being built.
+     *
+     * @param loadGeneration the generation when the snapshot started being built
+     */
+    private void cache(String wiki, OAuthConsumerConfiguration wikiConfiguration, long loadGeneration)
+    {
+        if (this.generation.get() != loadGeneration) {
+            return;
+        }
+        this.wikiConfigurations.set(wiki, wikiConfiguration);
+        // An invalidation between the check and the set may have missed the snapshot, drop it to be safe
+        if (this.generation.get() != loadGeneration) {
+            this.wikiConfigurations.remove(wiki);
+        }
+    }
+
+    /**
+     * @return the snapshot of the file, loaded on first use
+     */
+    private OAuthConsumerConfiguration getFileConfiguration()
+    {
+        if (this.configuration == null) {
+            synchronized (this) {
+                if (this.configuration == null) {
+                    load();
+                }
+            }
+        }
+        return this.configuration;
+    }
+
+    /**
+     * @return the snapshot of the current wiki, the snapshot of the file if the wiki doesn't override any property,
+     *         <code>null</code> if it cannot be loaded
+     */
+    private OAuthConsumerConfiguration loadWikiConfiguration(String wiki)
+    {
+        OAuthConsumerConfiguration fileConfiguration = getFileConfiguration();
+        String wikiProperties = this.socialAuthConfiguration.getOAuthProperties();
+        if (StringUtils.isBlank(wikiProperties) || fileConfiguration == null) {
+            return fileConfiguration;
+        }
+
+        try {
+            Properties mergedProperties = new Properties();
+            mergedProperties.putAll(this.properties);
+            mergedProperties.load(new StringReader(wikiProperties));
+            this.logger.debug("Loaded the OAuth consumer configuration of wiki [{}]", wiki);
+            return new OAuthConsumerConfiguration(mergedProperties);
+        } catch (Exception e) {
+            // Better than silently using the consumer keys of another wiki
+            this.logger.error("Failed to load the OAuth consumer configuration of wiki [{}]", wiki, e);
+            return null;
+        }
+    }
+
+    private synchronized void checkForChanges()
+    {
+        // Nothing to reload before the first use
+        if (this.configuration != null && getLastModified() != this.lastModified) {
+            load();
+        }
+    }
+
+    private synchronized void load()
+    {
+        long modified = getLastModified();
+        InputStream stream = this.environment.getResourceAsStream(PATH);
+        try {
+            Properties fileProperties = new Properties();
+            fileProperties.load(stream);
+            OAuthConsumerConfiguration fileConfiguration = new OAuthConsumerConfiguration(fileProperties);
+            this.properties = fileProperties;
+            this.configuration = fileConfiguration;
+            // The snapshots of the wikis are built on top of the file
+            this.generation.incrementAndGet();
+            this.wikiConfigurations.removeAll();
+            this.logger.debug("Loaded the OAuth consumer configuration from [{}]", PATH);
+        } catch (Exception e) {
+            this.logger.error("Failed to initialize Social Auth", e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+            // Don't try a broken file again until it changes
+            this.lastModified = modified;
+        }
+    }
+
+    /**
+     * @return the modification date of the configuration file, <code>0</code> if it is not a file
+     */
+    private long getLastModified()
+    {
+        URL url = this.environment.getResource(PATH);
+        File file = url != null ? FileUtils.toFile(url) : null;
+        return file != null ? file.lastModified() : 0;
+    }
+
+    /**
+     * @return the wiki whose configuration applies to the current request
+     */
+    String getConfigurationWiki()
+    {
+        XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+        if ("1".equals(context.getWiki().Param(GLOBAL_CONFIGURATION_KEY))) {
+            return this.valueProvider.getDefaultValue(EntityType.WIKI);
+        }
+        return context.getDatabase();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.security.SecureRandom;
+
+import javax.inject.Inject;
+
+import org.apache.commons.codec.binary.Base64;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Default {@link OAuthHandshakeStore}, keeping the handshakes in a bounded LRU cache with a time to live, so that
+ * abandoned handshakes are evicted instead of staying in the HTTP sessions.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultOAuthHandshakeStore implements OAuthHandshakeStore, Initializable
+{
+    private static final String CACHE_ID = "socialauth.handshakes";
+
+    private static final int CACHE_SIZE = 10000;
+
+    /** Time to live of a handshake, in seconds. */
+    private static final int CACHE_TIME_TO_LIVE = 600;
+
+    private static final int NONCE_LENGTH = 16;
+
+    private final SecureRandom random = new SecureRandom();
+
+    @Inject
+    private CacheManager cacheManager;
+
+    private Cache<OAuthHandshake> handshakes;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        lru.setTimeToLive(CACHE_TIME_TO_LIVE);
+        configuration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.handshakes = this.cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the OAuth handshake cache", e);
+        }
+    }
+
+    @Override
+    public String add(OAuthHandshake handshake)
+    {
+        byte[] bytes = new byte[NONCE_LENGTH];
+        this.random.nextBytes(bytes);
+        String nonce = Base64.encodeBase64URLSafeString(bytes);
+        this.handshakes.set(nonce, handshake);
+        return nonce;
+    }
+
+    @Override
+    public OAuthHandshake take(String nonce)
+    {
+        if (nonce == null) {
+            return null;
+        }
+        // A handshake is used once, even by concurrent callbacks
+        synchronized (this.handshakes) {
+            OAuthHandshake handshake = this.handshakes.get(nonce);
+            if (handshake != null) {
+                this.handshakes.remove(nonce);
+            }
+            return handshake;
+        }
+    }
+
+    @Override
+    public int getTimeToLive()
+    {
+        return CACHE_TIME_TO_LIVE;
+    }
+}
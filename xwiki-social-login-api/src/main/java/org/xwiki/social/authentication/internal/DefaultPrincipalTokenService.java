@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link PrincipalTokenService}, configured in <tt>xwiki.cfg</tt>.
+ * 
+ * @version $Id$
+ */
+@Component
+public class DefaultPrincipalTokenService implements PrincipalTokenService
+{
+    private static final String ENABLED_KEY = "xwiki.authentication.socialLogin.token";
+
+    private static final String KEYS_KEY = "xwiki.authentication.socialLogin.token.keys";
+
+    private static final String VALIDITY_KEY = "xwiki.authentication.socialLogin.token.validity";
+
+    /** Default validity of a token, in seconds. */
+    private static final int DEFAULT_VALIDITY = 12 * 60 * 60;
+
+    private static final String VERSION = "v1";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final char SEPARATOR = '|';
+
+    /** Separates the payload from its signature. */
+    private static final char SIGNATURE_SEPARATOR = '.';
+
+    /** Number of fields in the payload. */
+    private static final int FIELD_COUNT = 5;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    /** The configured keys by id, the first one signs new tokens. Parsed once, on first use. */
+    private volatile Map<String, SecretKeySpec> keys;
+
+    @Override
+    public boolean isEnabled()
+    {
+        return "1".equals(getContext().getWiki().Param(ENABLED_KEY)) && !getKeys().isEmpty();
+    }
+
+    @Override
+    public String createToken(String provider, String principal)
+    {
+        Map.Entry<String, SecretKeySpec> key = getKeys().entrySet().iterator().next();
+        long expiry = System.currentTimeMillis() / 1000L + getValidity();
+        String payload =
+            VERSION + SEPARATOR + key.getKey() + SEPARATOR + provider + SEPARATOR + expiry + SEPARATOR + principal;
+        try {
+            byte[] payloadBytes = payload.getBytes(ENCODING);
+            return Base64.encodeBase64URLSafeString(payloadBytes) + SIGNATURE_SEPARATOR
+                + Base64.encodeBase64URLSafeString(sign(key.getValue(), payloadBytes));
+        } catch (Exception e) {
+            this.logger.error("Failed to sign token for principal [{}]", principal, e);
+            return null;
+        }
+    }
+
+    @Override
+    public String validateToken(String token)
+    {
+        int separator = StringUtils.indexOf(token, SIGNATURE_SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+
+        try {
+            byte[] payloadBytes = Base64.decodeBase64(token.substring(0, separator));
+            String[] fields = StringUtils.splitPreserveAllTokens(new String(payloadBytes, ENCODING), SEPARATOR);
+            if (fields.length < FIELD_COUNT || !VERSION.equals(fields[0])) {
+                return null;
+            }
+            SecretKeySpec key = getKeys().get(fields[1]);
+            if (key == null) {
+                // Unknown or retired key
+                return null;
+            }
+            byte[] signature = Base64.decodeBase64(token.substring(separator + 1));
+            if (!MessageDigest.isEqual(sign(key, payloadBytes), signature)) {
+                return null;
+            }
+            if (Long.parseLong(fields[3]) < System.currentTimeMillis() / 1000L) {
+                return null;
+            }
+            // The principal is last and may itself contain the separator
+            return StringUtils.join(fields, SEPARATOR, FIELD_COUNT - 1, fields.length);
+        } catch (Exception e) {
+            this.logger.debug("Invalid social login token: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public int getValidity()
+    {
+        return (int) getContext().getWiki().ParamAsLong(VALIDITY_KEY, DEFAULT_VALIDITY);
+    }
+
+    private byte[] sign(SecretKeySpec key, byte[] payload) throws GeneralSecurityException
+    {
+        // Mac instances are not thread safe, and cheap to create compared to sharing them
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(key);
+        return mac.doFinal(payload);
+    }
+
+    private Map<String, SecretKeySpec> getKeys()
+    {
+        if (this.keys == null) {
+            Map<String, SecretKeySpec> parsedKeys = new LinkedHashMap<String, SecretKeySpec>();
+            String configuration = getContext().getWiki().Param(KEYS_KEY);
+            for (String entry : StringUtils.split(StringUtils.defaultString(configuration), ',')) {
+                String id = StringUtils.trim(StringUtils.substringBefore(entry, ":"));
+                String secret = StringUtils.trim(StringUtils.substringAfter(entry, ":"));
+                if (StringUtils.isEmpty(id) || StringUtils.isEmpty(secret)
+                    || StringUtils.containsAny(id, SEPARATOR, SIGNATURE_SEPARATOR)) {
+                    this.logger.warn("Ignoring invalid social login token key [{}]", id);
+                    continue;
+                }
+                try {
+                    parsedKeys.put(id, new SecretKeySpec(secret.getBytes(ENCODING), ALGORITHM));
+                } catch (UnsupportedEncodingException e) {
+                    // UTF-8 is always supported
+                }
+            }
+            this.keys = Collections.unmodifiableMap(parsedKeys);
+        }
+        return this.keys;
+    }
+
+    private XWikiContext getContext()
+    {
+        return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+    }
+}
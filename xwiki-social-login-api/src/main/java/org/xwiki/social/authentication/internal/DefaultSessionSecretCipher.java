@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.inject.Inject;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.social.legacy.crypto.passwd.PasswordCryptoService;
+import org.xwiki.social.legacy.crypto.passwd.internal.PBKDF2KeyDerivationFunction;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link SessionSecretCipher}. Encrypted secrets are formatted as <tt>v1:</tt> followed by the base 64 of the
+ * nonce and of the AES-256-GCM ciphertext (which ends with the authentication tag). Secrets without this prefix were
+ * encrypted with the {@link PasswordCryptoService} and are decrypted with it.
+ * 
+ * @version $Id$
+ */
+@Component
+public class DefaultSessionSecretCipher implements SessionSecretCipher
+{
+    private static final String VERSION_PREFIX = "v1:";
+
+    private static final String ENCRYPTION_KEY = "xwiki.authentication.encryptionKey";
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The key is derived from a configured secret and not from a user password, a fixed salt only makes the derived
+     * key specific to this use.
+     */
+    private static final String SALT = "xwiki-social-login session secret";
+
+    private static final int ITERATION_COUNT = 10000;
+
+    /** Length of the AES key, in bytes. */
+    private static final int KEY_LENGTH = 32;
+
+    /** Length of the GCM nonce, in bytes. */
+    private static final int NONCE_LENGTH = 12;
+
+    /** Length of the GCM authentication tag, in bits. */
+    private static final int TAG_LENGTH = 128;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private PasswordCryptoService passwordCryptoService;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** The key derived from the configured encryption key, along with that encryption key. */
+    private volatile DerivedKey key;
+
+    @Override
+    public String encrypt(String secret) throws GeneralSecurityException
+    {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+        byte[] ciphertext = process(true, nonce, toBytes(secret), 0);
+
+        byte[] output = new byte[NONCE_LENGTH + ciphertext.length];
+        System.arraycopy(nonce, 0, output, 0, NONCE_LENGTH);
+        System.arraycopy(ciphertext, 0, output, NONCE_LENGTH, ciphertext.length);
+        return VERSION_PREFIX + toString(Base64.encodeBase64(output));
+    }
+
+    @Override
+    public String decrypt(String encryptedSecret) throws GeneralSecurityException
+    {
+        if (!StringUtils.startsWith(encryptedSecret, VERSION_PREFIX)) {
+            return this.passwordCryptoService.decryptText(encryptedSecret, getEncryptionKey());
+        }
+
+        byte[] input = Base64.decodeBase64(toBytes(encryptedSecret.substring(VERSION_PREFIX.length())));
+        if (input.length <= NONCE_LENGTH) {
+            throw new GeneralSecurityException("Truncated session secret");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(input, 0, nonce, 0, NONCE_LENGTH);
+        return toString(process(false, nonce, input, NONCE_LENGTH));
+    }
+
+    private byte[] process(boolean encrypt, byte[] nonce, byte[] input, int offset) throws GeneralSecurityException
+    {
+        // Cipher instances hold state, they are cheap to create
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(encrypt, new AEADParameters(new KeyParameter(getKey()), TAG_LENGTH, nonce));
+
+        byte[] output = new byte[cipher.getOutputSize(input.length - offset)];
+        int length = cipher.processBytes(input, offset, input.length - offset, output, 0);
+        try {
+            length += cipher.doFinal(output, length);
+        } catch (InvalidCipherTextException e) {
+            throw new GeneralSecurityException("Invalid session secret", e);
+        }
+        if (length == output.length) {
+            return output;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+
+    private byte[] getKey()
+    {
+        String encryptionKey = getEncryptionKey();
+        DerivedKey current = this.key;
+        if (current == null || !current.encryptionKey.equals(encryptionKey)) {
+            PBKDF2KeyDerivationFunction function = new PBKDF2KeyDerivationFunction(new SHA256Digest());
+            function.init(toBytes(SALT), ITERATION_COUNT, KEY_LENGTH);
+            current = new DerivedKey(encryptionKey, function.deriveKey(toBytes(encryptionKey)));
+            this.key = current;
+        }
+        return current.key;
+    }
+
+    private String getEncryptionKey()
+    {
+        return StringUtils.defaultString(getContext().getWiki().Param(ENCRYPTION_KEY));
+    }
+
+    private byte[] toBytes(String string)
+    {
+        try {
+            return string.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String toString(byte[] bytes)
+    {
+        try {
+            return new String(bytes, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private XWikiContext getContext()
+    {
+        return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+    }
+
+    /**
+     * A key derived from an encryption key.
+     */
+    private static final class DerivedKey
+    {
+        private final String encryptionKey;
+
+        private final byte[] key;
+
+        DerivedKey(String encryptionKey, byte[] key)
+        {
+            this.encryptionKey = encryptionKey;
+            this.key = key;
+        }
+    }
+}
@@ -38,6 +38,12 @@ public class DefaultSocialAuthConfiguration implements SocialAuthConfiguration
      */
     private static final String PREFIX = "socialauth.";
 
+    private static final int DEFAULT_AVATAR_MAX_WIDTH = 200;
+
+    private static final int DEFAULT_AVATAR_MAX_HEIGHT = 200;
+
+    private static final int DEFAULT_AVATAR_MAX_SIZE = 2 * 1024 * 1024;
+
     /**
      * Defines from where to read the rendering configuration data.
      */
@@ -45,6 +51,13 @@ public class DefaultSocialAuthConfiguration implements SocialAuthConfiguration
     @Named("socialAuth")
     private ConfigurationSource configuration;
 
+    /**
+     * Reads the OAuth consumer properties, kept apart since they hold the consumer secrets.
+     */
+    @Inject
+    @Named("socialAuthConsumerDocument")
+    private ConfigurationSource consumerConfiguration;
+
     @Override
     public List<String> getAvailableProviders()
     {
@@ -90,4 +103,123 @@ public class DefaultSocialAuthConfiguration implements SocialAuthConfiguration
     {
         return this.configuration.getProperty(PREFIX + "domainRestriction", "");
     }
+
+    @Override
+    public String getOAuthProperties()
+    {
+        return this.consumerConfiguration.getProperty(PREFIX + "oauthProperties", "");
+    }
+
+    @Override
+    public String getCallbackExecutor()
+    {
+        return this.configuration.getProperty(PREFIX + "callback.executor", "default");
+    }
+
+    @Override
+    public int getCallbackThreads()
+    {
+        return this.configuration.getProperty(PREFIX + "callback.threads", 10);
+    }
+
+    @Override
+    public int getCallbackQueueSize()
+    {
+        return this.configuration.getProperty(PREFIX + "callback.queueSize", 50);
+    }
+
+    @Override
+    public int getCallbackTimeout(String provider)
+    {
+        int timeout = this.configuration.getProperty(PREFIX + "callback.timeout", 20);
+        return this.configuration.getProperty(PREFIX + "callback.timeout." + provider, timeout);
+    }
+
+    @Override
+    public int getHttpConnectionTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "http.connectionTimeout", 5000);
+    }
+
+    @Override
+    public int getHttpSocketTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "http.socketTimeout", 10000);
+    }
+
+    @Override
+    public int getHttpMaxConnectionsPerHost()
+    {
+        return this.configuration.getProperty(PREFIX + "http.maxConnectionsPerHost", 10);
+    }
+
+    @Override
+    public int getHttpMaxConnections()
+    {
+        return this.configuration.getProperty(PREFIX + "http.maxConnections", 50);
+    }
+
+    @Override
+    public int getAvatarMaxWidth()
+    {
+        return getPositiveProperty(PREFIX + "avatar.maxWidth", DEFAULT_AVATAR_MAX_WIDTH);
+    }
+
+    @Override
+    public int getAvatarMaxHeight()
+    {
+        return getPositiveProperty(PREFIX + "avatar.maxHeight", DEFAULT_AVATAR_MAX_HEIGHT);
+    }
+
+    @Override
+    public int getAvatarMaxSize()
+    {
+        return getPositiveProperty(PREFIX + "avatar.maxSize", DEFAULT_AVATAR_MAX_SIZE);
+    }
+
+    @Override
+    public String getSessionStore()
+    {
+        return this.configuration.getProperty(PREFIX + "session.store", "default");
+    }
+
+    @Override
+    public int getSessionTimeToLive()
+    {
+        return this.configuration.getProperty(PREFIX + "session.timeToLive", 86400);
+    }
+
+    @Override
+    public String getSessionDatabaseURL()
+    {
+        return this.configuration.getProperty(PREFIX + "session.jdbc.url", "");
+    }
+
+    @Override
+    public String getSessionDatabaseDriver()
+    {
+        return this.configuration.getProperty(PREFIX + "session.jdbc.driver", "");
+    }
+
+    @Override
+    public String getSessionDatabaseUser()
+    {
+        return this.configuration.getProperty(PREFIX + "session.jdbc.user", "sa");
+    }
+
+    @Override
+    public String getSessionDatabasePassword()
+    {
+        return this.configuration.getProperty(PREFIX + "session.jdbc.password", "");
+    }
+
+    /**
+     * @return the value of the property, or the default value if the property is not set or is not positive, since a
+     *         limit of zero or less would refuse every value or break the computations using it
+     */
+    private int getPositiveProperty(String key, int defaultValue)
+    {
+        int value = this.configuration.getProperty(key, defaultValue);
+        return value > 0 ? value : defaultValue;
+    }
 }
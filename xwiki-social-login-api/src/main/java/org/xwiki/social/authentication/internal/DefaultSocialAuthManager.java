@@ -23,83 +23,110 @@ import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.inject.Inject;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.lang3.StringUtils;
 import org.brickred.socialauth.AuthProvider;
 import org.brickred.socialauth.Permission;
 import org.brickred.socialauth.Profile;
-import org.brickred.socialauth.SocialAuthConfig;
 import org.brickred.socialauth.SocialAuthManager;
 import org.brickred.socialauth.util.SocialAuthUtil;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
-import org.xwiki.environment.Environment;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.EntityReferenceValueProvider;
-import org.xwiki.query.Query;
-import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
+import org.xwiki.rendering.syntax.Syntax;
 import org.xwiki.social.authentication.ProfilePictureProviderTransformer;
 import org.xwiki.social.authentication.SocialAuthConfiguration;
 import org.xwiki.social.authentication.SocialAuthConstants;
 import org.xwiki.social.authentication.SocialAuthException;
+import org.xwiki.social.authentication.SocialAuthGrant;
 import org.xwiki.social.authentication.SocialAuthSession;
 import org.xwiki.social.authentication.SocialAuthenticationManager;
-import org.xwiki.social.legacy.crypto.passwd.PasswordCryptoService;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
-import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.classes.BaseClass;
 
 @Component
 public class DefaultSocialAuthManager implements SocialAuthenticationManager, SocialAuthConstants
 {
-    private static final String DEFAULT_PROFILE_PICTURE_FILENAME = "profile.jpg";
-
     private static final String GLOBAL_CONFIGURATION_KEY = "xwiki.authentication.socialLogin.globalConfiguration";
 
     private static final String EXTRA_REGISTRATION_STEP_DOCUMENT = "XWiki.SocialLoginRegister";
 
-    @Inject
-    private Logger logger;
+    /** Name of the cookie identifying the OAuth handshake in progress. */
+    private static final String HANDSHAKE_COOKIE = "sl_handshake";
+
+    private static final EntityReference USER_PARENT_REFERENCE = new EntityReference("XWikiUsers",
+        EntityType.DOCUMENT, new EntityReference("XWiki", EntityType.SPACE));
+
+    private static final String USER_CONTENT = "{{include document=\"XWiki.XWikiUserSheet\"/}}";
 
     @Inject
-    private Environment environment;
+    private Logger logger;
 
     @Inject
     private Execution execution;
 
     @Inject
-    private QueryManager queryManager;
+    private SocialIdentityIndex identityIndex;
 
     @Inject
     private SocialAuthConfiguration configuration;
 
     @Inject
-    private PasswordCryptoService passwordCryptoService;
+    private SessionSecretCipher sessionSecretCipher;
 
     @Inject
     private Map<String, ProfilePictureProviderTransformer> profilePictureTransformers;
 
+    @Inject
+    private Map<String, OAuthCallbackExecutor> callbackExecutors;
+
+    @Inject
+    private AvatarImporter avatarImporter;
+
+    @Inject
+    private GroupMembershipBuffer groupMembershipBuffer;
+
+    @Inject
+    private UsernameAllocator usernameAllocator;
+
+    @Inject
+    private OAuthConsumerConfigurationProvider consumerConfigurationProvider;
+
+    @Inject
+    private OAuthHandshakeStore handshakeStore;
+
+    @Inject
+    private Map<String, SocialAuthSessionStore> sessionStores;
+
     @Inject
     private EntityReferenceValueProvider valueProvider;
 
-    private SocialAuthConfig config;
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /** The users being created, by wiki and social identity, shared with the concurrent requests for them. */
+    private final ConcurrentMap<String, FutureTask<DocumentReference>> provisionings =
+        new ConcurrentHashMap<String, FutureTask<DocumentReference>>();
 
     @Override
     public void associateAccount(String providerId) throws SocialAuthException
@@ -116,12 +143,14 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
                 this.requestConnection(providerId, url);
 
             } else {
-                SocialAuthSession session =
-                    (SocialAuthSession) request.getSession().getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
-
-                provider = session.getAuthManager().connect(SocialAuthUtil.getRequestParametersMap(request));
+                OAuthHandshake handshake = takeHandshake(providerId);
+                provider =
+                    connectProvider(providerId, handshake.getAuthManager(),
+                        SocialAuthUtil.getRequestParametersMap(request));
+                SocialAuthSession session = getOrCreateSession();
                 session.putAuthProvider(providerId, provider);
-                Profile profile = provider.getUserProfile();
+                saveSession(session);
+                Profile profile = session.getProfile(providerId);
 
                 if (getUser(providerId, profile.getValidatedId()) != null) {
                     throw new SocialAuthException(
@@ -150,11 +179,13 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
                 this.requestConnection(providerId, url);
 
             } else {
-                SocialAuthSession session =
-                    (SocialAuthSession) request.getSession().getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
-
-                provider = session.getAuthManager().connect(SocialAuthUtil.getRequestParametersMap(request));
+                OAuthHandshake handshake = takeHandshake(providerId);
+                provider =
+                    connectProvider(providerId, handshake.getAuthManager(),
+                        SocialAuthUtil.getRequestParametersMap(request));
+                SocialAuthSession session = getOrCreateSession();
                 session.putAuthProvider(providerId, provider);
+                saveSession(session);
             }
         } catch (Exception e) {
             throw new SocialAuthException("Failed to associate account", e);
@@ -165,10 +196,9 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
     public DocumentReference connect(Map<String, String> requestParameters) throws SocialAuthException
     {
         AuthProvider provider;
-        SocialAuthSession session = getSession();
         try {
-            SocialAuthManager manager = session.getAuthManager();
-            provider = manager.connect(requestParameters);
+            OAuthHandshake handshake = takeHandshake(null);
+            provider = connectProvider(handshake.getProvider(), handshake.getAuthManager(), requestParameters);
             Profile profile = provider.getUserProfile();
 
             // check eventual domain restriction
@@ -183,6 +213,9 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
                 }
             }
 
+            // A new login starts a new social session
+            SocialAuthSession session = getSessionStore().create(getRequest(), getResponse());
+
             boolean isGlobalConfiguration = isGlobalConfiguration();
             XWikiContext context = getContext();
             String currentDatabase = context.getDatabase();
@@ -196,17 +229,21 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
 
                 // FIXME use a random in a singleton instead, as somebody could use the persistent cookie to forge the
                 // encrypted password
-                session.putAuthProvider(profile.getProviderId(), provider);
+                session.putAuthProvider(profile.getProviderId(), provider, profile);
                 session.setCurrentProvider(profile.getProviderId());
+                saveSession(session);
 
                 if (user == null) {
                     if (configuration.isAutomaticUserCreation()) {
-                        user = this.createUser(profile, this.computeUsername(profile));
+                        user = this.provisionUser(getContext().getDatabase(), profile);
                     } else {
                         getResponse().sendRedirect(
                             context.getWiki().getURL(EXTRA_REGISTRATION_STEP_DOCUMENT, "view", context));
                         return null;
                     }
+                } else {
+                    // Refresh the picture imported previously, if it is still the avatar of the user
+                    importAvatar(user, profile);
                 }
 
                 XWikiDocument userDocument = getContext().getWiki().getDocument(user, getContext());
@@ -214,6 +251,7 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
                     userDocument.getXObject(SOCIAL_LOGIN_PROFILE_CLASS, "provider", profile.getProviderId());
                 String password = object.getStringValue("password");
                 this.setPassword(password);
+                bindUser(session, user);
 
                 return user;
             } finally {
@@ -235,7 +273,7 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         if (session == null || session.getProfile() == null) {
             throw new SocialAuthException("Illegal attempt at creating a user that is not associated");
         }
-        return this.createUser(this.computeUsername(session.getProfile()), extraProperties);
+        return this.createAllocatedUser(session.getProfile(), extraProperties);
     }
 
     @Override
@@ -252,9 +290,53 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
     @Override
     public SocialAuthSession getSession()
     {
-        HttpSession httpSession = getRequest().getSession();
-        SocialAuthSession session = (SocialAuthSession) httpSession.getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
-        return session;
+        return getSessionStore().get(getRequest());
+    }
+
+    @Override
+    public void removeSession()
+    {
+        getSessionStore().remove(getRequest(), getResponse());
+    }
+
+    @Override
+    public String bindUser(SocialAuthSession session, DocumentReference user)
+    {
+        String principal = this.serializer.serialize(user);
+        session.bindUser(user, principal);
+        saveSession(session);
+        return principal;
+    }
+
+    @Override
+    public int getCallbackQueueSize()
+    {
+        return getCallbackExecutor().getQueueSize();
+    }
+
+    /**
+     * Gets the social session of the current request from the session store, creating it if needed.
+     */
+    private SocialAuthSession getOrCreateSession()
+    {
+        return getSessionStore().getOrCreate(getRequest(), getResponse());
+    }
+
+    /**
+     * Records the changes made to a social session in the session store.
+     */
+    private void saveSession(SocialAuthSession session)
+    {
+        getSessionStore().save(getRequest(), session);
+    }
+
+    private SocialAuthSessionStore getSessionStore()
+    {
+        SocialAuthSessionStore store = this.sessionStores.get(this.configuration.getSessionStore());
+        if (store == null) {
+            store = this.sessionStores.get("default");
+        }
+        return store;
     }
 
     @Override
@@ -270,26 +352,7 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         }
 
         try {
-            String queryStatement =
-                "from doc.object(XWiki.XWikiUsers) as user, doc.object(XWiki.SocialLoginProfileClass)"
-                    + " as profile where profile.provider = :provider and profile.validatedId = :validated";
-
-            Query query = this.queryManager.createQuery(queryStatement, Query.XWQL);
-            query.bindValue("provider", provider);
-            query.bindValue("validated", id);
-
-            List<String> results = query.execute();
-
-            for (String reference : results) {
-                return getContext().getWiki().getDocument(reference, getContext()).getDocumentReference();
-            }
-            return null;
-        } catch (QueryException e) {
-            this.logger.error("Failed to query for user with provider [{}] and id [{}]", provider, id);
-            return null;
-        } catch (XWikiException e) {
-            this.logger.error("Failed to query for user with provider [{}] and id [{}]", provider, id);
-            return null;
+            return this.identityIndex.getUser(provider, id);
         } finally {
             if (isGlobalConfiguration) {
                 context.setDatabase(currentDatabase);
@@ -326,38 +389,75 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         return isConnected(getSession(), provider);
     }
 
+    @Override
+    public AuthProvider getAuthProvider(String providerId) throws SocialAuthException
+    {
+        SocialAuthSession session = getSession();
+        if (session == null) {
+            return null;
+        }
+        AuthProvider provider = session.getAuthProvider(providerId);
+        if (provider == null) {
+            provider = rebuildAuthProvider(session.getGrant(providerId));
+            if (provider != null) {
+                session.restoreAuthProvider(providerId, provider);
+            }
+        }
+        return provider;
+    }
+
+    @Override
+    public Profile refreshProfile(String providerId) throws SocialAuthException
+    {
+        SocialAuthSession session = getSession();
+        if (session == null) {
+            return null;
+        }
+        // A new connection, since the providers keep the profile they fetched
+        final AuthProvider provider = rebuildAuthProvider(session.getGrant(providerId));
+        if (provider == null) {
+            return null;
+        }
+        Profile profile = getCallbackExecutor().execute(providerId, new Callable<Profile>()
+        {
+            @Override
+            public Profile call() throws Exception
+            {
+                return provider.getUserProfile();
+            }
+        });
+        session.putAuthProvider(providerId, provider, profile);
+        saveSession(session);
+        return session.getProfile(providerId);
+    }
+
     @Override
     public void requestConnection(String provider, String returnUrl) throws SocialAuthException
     {
-        HttpSession httpSession = getRequest().getSession();
         HttpServletResponse response = getResponse();
 
         try {
+            OAuthConsumerConfiguration consumerConfiguration = this.consumerConfigurationProvider.getConfiguration();
+            if (consumerConfiguration == null) {
+                throw new SocialAuthException("No OAuth consumer configuration available");
+            }
             SocialAuthManager manager = new SocialAuthManager();
-            manager.setSocialAuthConfig(this.getSocialAuthConfig());
-
-            // Save the manager in session : we will need this one on the way back from OAuth to validate the response
-            SocialAuthSession session = new SocialAuthSession(manager);
-            session.setCurrentProvider(provider);
-            httpSession.setAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE, session);
+            manager.setSocialAuthConfig(consumerConfiguration.getSocialAuthConfig());
 
             Permission urlPermission = null;
-            // Check for custom permissions in the OAuth config file
-            String customPermissions = null;
-            for (Object entry : this.getSocialAuthConfig().getApplicationProperties().keySet()) {
-                String cKey = (String) entry;
-                if (cKey.contains(provider) && cKey.contains("custom_permission")) {
-                    customPermissions = (String) this.getSocialAuthConfig().getApplicationProperties().get(cKey);
-                    break;
-                }
+            // Check for custom permissions in the OAuth config file, already set in the provider configuration
+            String customPermissions = consumerConfiguration.getCustomPermissions(provider);
+            if (customPermissions != null) {
+                logger.debug("Using custom permissions for scope:" + customPermissions);
+                urlPermission = Permission.CUSTOM;
             }
-            if(!StringUtils.isBlank(customPermissions)) {
-            	logger.debug("Using custom permissions for scope:" + customPermissions);
-            	manager.getSocialAuthConfig().getProviderConfig(provider).setCustomPermissions(customPermissions);
-            	urlPermission = Permission.CUSTOM;
-            } 
             String url = manager.getAuthenticationUrl(provider, returnUrl, urlPermission);
 
+            // Keep the manager until the callback, out of the HTTP session: we will need it on the way back from OAuth
+            // to validate the response
+            String nonce = this.handshakeStore.add(new OAuthHandshake(provider, returnUrl, manager));
+            setHandshakeCookie(nonce, this.handshakeStore.getTimeToLive());
+
             logger.debug("Redirecting to OAuth endpoint URL : " + url);
 
             try {
@@ -393,82 +493,21 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
 
         try {
             XWikiDocument userDoc = context.getWiki().getDocument(user, context);
-
-            String generatedPassword = getContext().getWiki().generateRandomString(16);
-
-            BaseObject socialProfile = userDoc.getXObject(SOCIAL_LOGIN_PROFILE_CLASS, true, context);
             BaseObject userObject = userDoc.getXObject(XWIKI_USER_CLASS_REF, false, context);
 
             if (userObject == null) {
                 throw new SocialAuthException("Cannot associate a social profile to a non-user page");
             }
 
-            if (StringUtils.isBlank(userObject.getStringValue("first_name"))) {
-                userObject.set("first_name", profile.getFirstName(), context);
-            }
-            if (StringUtils.isBlank(userObject.getStringValue("last_name"))) {
-                userObject.set("last_name", profile.getLastName(), context);
-            }
-            if (StringUtils.isBlank(userObject.getStringValue("email"))) {
-                userObject.set("email", profile.getEmail(), context);
-            }
-
-            if (!StringUtils.isBlank(profile.getProfileImageURL())
-                && StringUtils.isBlank(userObject.getStringValue("avatar"))) {
-
-                String profilePictureURL = profile.getProfileImageURL();
-                if (this.profilePictureTransformers.containsKey(profile.getProviderId())) {
-                    // Transform profile picture URL if necessary for this provider
-                    profilePictureURL =
-                        this.profilePictureTransformers.get(profile.getProviderId()).transform(profilePictureURL);
-                }
-
-                GetMethod get = new GetMethod(profilePictureURL);
-                try {
-                    XWikiAttachment attachment = new XWikiAttachment(userDoc, DEFAULT_PROFILE_PICTURE_FILENAME);
-                    userDoc.getAttachmentList().add(attachment);
-
-                    HttpClient httpClient = new HttpClient();
-                    httpClient.getParams().setBooleanParameter("http.connection.stalecheck", true);
-
-                    int httpStatus = httpClient.executeMethod(get);
-                    if (httpStatus == HttpStatus.SC_OK) {
-                        attachment.setContent(get.getResponseBodyAsStream());
-                        attachment.setAuthor(userDoc.getAuthor());
-                        attachment.setDoc(userDoc);
-                        userObject.set("avatar", DEFAULT_PROFILE_PICTURE_FILENAME, context);
-                    } else {
-                        this.logger.debug("Failed to load image: status is " + httpStatus);
-                    }
-
-                } catch (Exception e) {
-                    this.logger.warn("Error attaching social profile picture to profile", e);
-                    // Nevermind, ain't gonna have a profile picture.
-                } finally {
-                    get.releaseConnection();
-                }
-            }
-
-            socialProfile.set("provider", profile.getProviderId(), context);
-            socialProfile.set("fullName", profile.getFullName(), context);
-            socialProfile.set("firstName", profile.getFirstName(), context);
-            socialProfile.set("lastName", profile.getLastName(), context);
-            socialProfile.set("displayName", profile.getDisplayName(), context);
-            socialProfile.set("email", profile.getEmail(), context);
-            socialProfile.set("profileImageURL", profile.getProfileImageURL(), context);
-            socialProfile.set("gender", profile.getGender(), context);
-            if (profile.getDob() != null) {
-                socialProfile.set("dob", profile.getDob().toString(), context);
-            }
-            socialProfile.set("validatedId", profile.getValidatedId(), context);
-            socialProfile.set("country", profile.getCountry(), context);
-            socialProfile.set("location", profile.getLocation(), context);
-            socialProfile.set("password", generatedPassword, context);
-
-            this.setPassword(generatedPassword);
+            setSocialProfile(userDoc, userObject, profile, context);
 
             context.getWiki().saveDocument(userDoc,
                 context.getMessageTool().get("xwiki.socialLogin.updatedSocialProfile"), true, context);
+
+            if (StringUtils.isBlank(userObject.getStringValue("avatar"))) {
+                // Downloaded and attached in the background, the user doesn't have to wait for it
+                importAvatar(userDoc.getDocumentReference(), profile);
+            }
         } catch (XWikiException e) {
             this.logger.error("Failed to merge or create user", e);
         } finally {
@@ -478,6 +517,99 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         }
     }
 
+    /**
+     * Takes the handshake identified by the {@value #HANDSHAKE_COOKIE} cookie out of the handshake store, and clears
+     * the cookie.
+     *
+     * @param providerId the provider the callback is for, <code>null</code> to accept any
+     */
+    private OAuthHandshake takeHandshake(String providerId) throws SocialAuthException
+    {
+        Cookie cookie = getContext().getRequest().getCookie(HANDSHAKE_COOKIE);
+        OAuthHandshake handshake = this.handshakeStore.take(cookie != null ? cookie.getValue() : null);
+        setHandshakeCookie(null, 0);
+        if (handshake == null) {
+            throw new SocialAuthException("No OAuth handshake in progress, it may have expired");
+        }
+        if (providerId != null && !providerId.equals(handshake.getProvider())) {
+            throw new SocialAuthException("The OAuth handshake in progress is for provider ["
+                + handshake.getProvider() + "]");
+        }
+        return handshake;
+    }
+
+    private void setHandshakeCookie(String nonce, int maxAge)
+    {
+        HttpServletResponse response = getResponse();
+        if (response != null) {
+            HttpOnlyCookies.addCookie(getRequest(), response, HANDSHAKE_COOKIE, nonce, maxAge);
+        }
+    }
+
+    /**
+     * Verifies the response of a provider and fetches the profile of the user, which both call the provider, on the
+     * configured {@link OAuthCallbackExecutor}.
+     */
+    private AuthProvider connectProvider(String providerId, final SocialAuthManager manager,
+        final Map<String, String> requestParameters) throws SocialAuthException
+    {
+        return getCallbackExecutor().execute(providerId, new Callable<AuthProvider>()
+        {
+            @Override
+            public AuthProvider call() throws Exception
+            {
+                AuthProvider provider = manager.connect(requestParameters);
+                // The profile is fetched once and kept by the provider
+                provider.getUserProfile();
+                return provider;
+            }
+        });
+    }
+
+    private OAuthCallbackExecutor getCallbackExecutor()
+    {
+        OAuthCallbackExecutor executor = this.callbackExecutors.get(this.configuration.getCallbackExecutor());
+        if (executor == null) {
+            executor = this.callbackExecutors.get("default");
+        }
+        return executor;
+    }
+
+    /**
+     * @return a new connection to the provider of the grant, <code>null</code> if there is no grant or if it has expired
+     */
+    private AuthProvider rebuildAuthProvider(SocialAuthGrant grant) throws SocialAuthException
+    {
+        if (grant == null || grant.getAccessGrant() == null || grant.isExpired()) {
+            return null;
+        }
+        OAuthConsumerConfiguration consumerConfiguration = this.consumerConfigurationProvider.getConfiguration();
+        if (consumerConfiguration == null) {
+            throw new SocialAuthException("No OAuth consumer configuration available");
+        }
+        try {
+            SocialAuthManager manager = new SocialAuthManager();
+            manager.setSocialAuthConfig(consumerConfiguration.getSocialAuthConfig());
+            return manager.connect(grant.getAccessGrant());
+        } catch (Exception e) {
+            throw new SocialAuthException("Failed to rebuild the connection to [" + grant.getProvider() + "]", e);
+        }
+    }
+
+    private void importAvatar(DocumentReference user, Profile profile)
+    {
+        String profilePictureURL = profile.getProfileImageURL();
+        if (StringUtils.isBlank(profilePictureURL)) {
+            return;
+        }
+        if (this.profilePictureTransformers.containsKey(profile.getProviderId())) {
+            // Transform profile picture URL if necessary for this provider
+            profilePictureURL =
+                this.profilePictureTransformers.get(profile.getProviderId()).transform(profilePictureURL);
+        }
+        this.avatarImporter.importAvatar(user, profile.getProviderId(), profilePictureURL);
+    }
+
     private String computeUsername(Profile profile)
     {
         // TODO let the format be defined in configuration
@@ -490,41 +622,177 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
             username = profile.getProviderId() + "-" + profile.getValidatedId();
         }
 
-        return getContext().getWiki().getUniquePageName("XWiki", username, getContext());
+        return this.usernameAllocator.allocate(username);
     }
 
-    private DocumentReference createUser(Profile profile, String username) throws XWikiException, SocialAuthException
+    /**
+     * Creates the user of a social profile in a wiki, unless a concurrent request is already creating it, in which case
+     * the user it creates is returned instead of creating a second one.
+     */
+    DocumentReference provisionUser(String wiki, final Profile profile) throws XWikiException, SocialAuthException
     {
-        return this.createUser(profile, username, Collections.<String, String> emptyMap());
+        String key = CacheKeys.getKey(wiki, profile.getProviderId(), profile.getValidatedId());
+        FutureTask<DocumentReference> provisioning =
+            new FutureTask<DocumentReference>(new Callable<DocumentReference>()
+            {
+                @Override
+                public DocumentReference call() throws Exception
+                {
+                    return getOrCreateUser(profile);
+                }
+            });
+
+        FutureTask<DocumentReference> running = this.provisionings.putIfAbsent(key, provisioning);
+        if (running == null) {
+            running = provisioning;
+            try {
+                provisioning.run();
+            } finally {
+                this.provisionings.remove(key, provisioning);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocialAuthException("Interrupted while waiting for the creation of the user", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof XWikiException) {
+                throw (XWikiException) e.getCause();
+            } else if (e.getCause() instanceof SocialAuthException) {
+                throw (SocialAuthException) e.getCause();
+            }
+            throw new SocialAuthException("Failed to create user", e.getCause());
+        }
     }
 
-    private DocumentReference createUser(Profile profile, String username, Map<String, String> extraProperties)
+    /**
+     * @return the user of a social profile, created unless a request which finished between the lookup and now
+     *         created it
+     */
+    DocumentReference getOrCreateUser(Profile profile) throws XWikiException, SocialAuthException
+    {
+        DocumentReference user = getUser(profile.getProviderId(), profile.getValidatedId());
+        return user != null ? user : createAllocatedUser(profile, Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * Creates the user of a social profile under a name handed out by the {@link UsernameAllocator}, which is released
+     * once the user page is saved.
+     */
+    private DocumentReference createAllocatedUser(Profile profile, Map<String, String> extraProperties)
         throws XWikiException, SocialAuthException
     {
-        String userDocumentName = "XWiki." + username;
+        String wiki = getContext().getDatabase();
+        String username = computeUsername(profile);
+        try {
+            return this.createUser(profile, username, extraProperties);
+        } finally {
+            this.usernameAllocator.release(wiki, username);
+        }
+    }
 
-        if (isGlobalConfiguration()) {
+    /**
+     * Creates the user document with its user object, its social profile and its rights in memory, and saves it once,
+     * instead of letting {@link com.xpn.xwiki.XWiki#createUser(String, Map, XWikiContext)} save it and saving it again
+     * with the social profile.
+     */
+    private DocumentReference createUser(Profile profile, String username, Map<String, String> extraProperties)
+        throws XWikiException, SocialAuthException
+    {
+        boolean isGlobalConfiguration = isGlobalConfiguration();
+        XWikiContext context = getContext();
+        String currentDatabase = context.getDatabase();
+        if (isGlobalConfiguration) {
             // we need to make sure we create the user globally if the configuration says so
-            userDocumentName = getMainWikiName() + ":" + userDocumentName;
+            context.setDatabase(getMainWikiName());
         }
-        XWikiContext context = getContext();
 
-        Map<String, String> properties = new HashMap<String, String>(extraProperties);
-        properties.put("active", "1");
-        properties.put("email", profile.getEmail());
-        properties.put("first_name", profile.getFirstName());
-        properties.put("last_name", profile.getLastName());
-        // We don't put the same password as the one of the social profile
-        properties.put("password", getContext().getWiki().generateRandomString(16));
+        try {
+            DocumentReference user = new DocumentReference(context.getDatabase(), "XWiki", username);
+            XWikiDocument userDoc = context.getWiki().getDocument(user, context);
+            if (!userDoc.isNew()) {
+                throw new SocialAuthException("User [" + username + "] already exists");
+            }
+
+            Map<String, String> properties = new HashMap<String, String>(extraProperties);
+            properties.put("active", "1");
+            properties.put("email", profile.getEmail());
+            properties.put("first_name", profile.getFirstName());
+            properties.put("last_name", profile.getLastName());
+            // We don't put the same password as the one of the social profile
+            properties.put("password", context.getWiki().generateRandomString(16));
+
+            // Same document as the one XWiki#createUser would create
+            BaseClass userClass = context.getWiki().getUserClass(context);
+            BaseObject userObject =
+                (BaseObject) userClass.fromMap(properties, userDoc.newXObject(userClass.getDocumentReference(), context));
+            userDoc.setParentReference(USER_PARENT_REFERENCE);
+            userDoc.setContent(USER_CONTENT);
+            userDoc.setSyntax(Syntax.XWIKI_2_0);
+            userDoc.setCreatorReference(user);
+            userDoc.setAuthorReference(user);
+            String userFullName = userDoc.getFullName();
+            context.getWiki().protectUserPage(userFullName, "edit", userDoc, context);
+
+            setSocialProfile(userDoc, userObject, profile, context);
+
+            context.getWiki().saveDocument(userDoc, context.getMessageTool().get("core.comment.createdUser"), context);
+            // Saved with the other users created in the meantime, so that concurrent first logins don't each save
+            // the same groups
+            this.groupMembershipBuffer.addMember(user);
+
+            bindUser(getSession(), user);
+            // Downloaded and attached in the background, the user doesn't have to wait for it
+            importAvatar(user, profile);
+
+            return user;
+        } finally {
+            if (isGlobalConfiguration) {
+                context.setDatabase(currentDatabase);
+            }
+        }
+    }
 
-        context.getWiki().createUser(username, properties, context);
+    /**
+     * Fills the blank fields of the user object from the social profile and sets the social profile object of the
+     * user document, without saving it.
+     */
+    private void setSocialProfile(XWikiDocument userDoc, BaseObject userObject, Profile profile, XWikiContext context)
+        throws XWikiException
+    {
+        String generatedPassword = context.getWiki().generateRandomString(16);
 
-        XWikiDocument userDoc = context.getWiki().getDocument(userDocumentName, context);
+        BaseObject socialProfile = userDoc.getXObject(SOCIAL_LOGIN_PROFILE_CLASS, true, context);
 
-        this.addSocialProfileToUser(profile, userDoc.getDocumentReference());
+        if (StringUtils.isBlank(userObject.getStringValue("first_name"))) {
+            userObject.set("first_name", profile.getFirstName(), context);
+        }
+        if (StringUtils.isBlank(userObject.getStringValue("last_name"))) {
+            userObject.set("last_name", profile.getLastName(), context);
+        }
+        if (StringUtils.isBlank(userObject.getStringValue("email"))) {
+            userObject.set("email", profile.getEmail(), context);
+        }
 
-        return userDoc.getDocumentReference();
+        socialProfile.set("provider", profile.getProviderId(), context);
+        socialProfile.set("fullName", profile.getFullName(), context);
+        socialProfile.set("firstName", profile.getFirstName(), context);
+        socialProfile.set("lastName", profile.getLastName(), context);
+        socialProfile.set("displayName", profile.getDisplayName(), context);
+        socialProfile.set("email", profile.getEmail(), context);
+        socialProfile.set("profileImageURL", profile.getProfileImageURL(), context);
+        socialProfile.set("gender", profile.getGender(), context);
+        if (profile.getDob() != null) {
+            socialProfile.set("dob", profile.getDob().toString(), context);
+        }
+        socialProfile.set("validatedId", profile.getValidatedId(), context);
+        socialProfile.set("country", profile.getCountry(), context);
+        socialProfile.set("location", profile.getLocation(), context);
+        socialProfile.set("password", generatedPassword, context);
 
+        this.setPassword(generatedPassword);
     }
 
     private XWikiContext getContext()
@@ -532,12 +800,6 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
     }
 
-    private String getEncryptionKey()
-    {
-        String key = getContext().getWiki().Param("xwiki.authentication.encryptionKey");
-        return key;
-    }
-
     private String getMainWikiName()
     {
         return valueProvider.getDefaultValue(EntityType.WIKI);
@@ -558,23 +820,6 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
         return "1".equals(getContext().getWiki().Param(GLOBAL_CONFIGURATION_KEY));
     }
 
-    private SocialAuthConfig getSocialAuthConfig()
-    {
-        if (this.config == null) {
-            try {
-                Properties properties = new Properties();
-                properties.load(this.environment.getResourceAsStream("/WEB-INF/oauth_consumer.properties"));
-
-                config = SocialAuthConfig.getDefault();
-                config.load(properties);
-
-            } catch (Exception e) {
-                logger.error("Failed to initialize Social Auth", e);
-            }
-        }
-        return this.config;
-    }
-
     private boolean isConnected(SocialAuthSession profile)
     {
         return profile != null && this.isConnected(profile, profile.getCurrentProvider());
@@ -582,13 +827,15 @@ public class DefaultSocialAuthManager implements SocialAuthenticationManager, So
 
     private boolean isConnected(SocialAuthSession profile, String provider)
     {
-        return profile != null && profile.getProfile(provider) != null;
+        return profile != null && profile.getGrant(provider) != null;
     }
 
     private void setPassword(String password)
     {
         try {
-            getSession().setEncryptedPassword(this.passwordCryptoService.encryptText(password, getEncryptionKey()));
+            SocialAuthSession session = getSession();
+            session.setEncryptedPassword(this.sessionSecretCipher.encrypt(password));
+            saveSession(session);
         } catch (GeneralSecurityException e) {
             // Nothing
         }
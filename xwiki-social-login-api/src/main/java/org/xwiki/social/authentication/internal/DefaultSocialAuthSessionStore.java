@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.Serializable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.social.authentication.SocialAuthConstants;
+import org.xwiki.social.authentication.SocialAuthSession;
+
+/**
+ * Default {@link SocialAuthSessionStore}, keeping the social sessions in the HTTP sessions of the container. They are
+ * lost when the node restarts, unless the container persists its sessions, and are shared by the cluster nodes only
+ * if it replicates them.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultSocialAuthSessionStore implements SocialAuthSessionStore, SocialAuthConstants
+{
+    /**
+     * The attribute holding the object the creation of the social session of a HTTP session is synchronized on.
+     */
+    private static final String MUTEX_ATTRIBUTE = SOCIAL_AUTH_SESSION_ATTRIBUTE + ".mutex";
+
+    @Override
+    public SocialAuthSession get(HttpServletRequest request)
+    {
+        // Don't create a HTTP session just to find out there is no social session in it
+        HttpSession httpSession = request.getSession(false);
+        if (httpSession == null) {
+            return null;
+        }
+        return (SocialAuthSession) httpSession.getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
+    }
+
+    @Override
+    public SocialAuthSession create(HttpServletRequest request, HttpServletResponse response)
+    {
+        SocialAuthSession session = new SocialAuthSession();
+        request.getSession().setAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE, session);
+        return session;
+    }
+
+    @Override
+    public SocialAuthSession getOrCreate(HttpServletRequest request, HttpServletResponse response)
+    {
+        HttpSession httpSession = request.getSession();
+        SocialAuthSession session = (SocialAuthSession) httpSession.getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
+        if (session == null) {
+            // Only the creation is guarded, so that concurrent requests of a session don't each create their own
+            // social session; the social session itself is safe for concurrent use
+            synchronized (getMutex(httpSession)) {
+                session = (SocialAuthSession) httpSession.getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
+                if (session == null) {
+                    session = new SocialAuthSession();
+                    httpSession.setAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE, session);
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * The containers may give each request a different object for the same HTTP session, so it cannot be synchronized
+     * on: the requests of a session share a mutex kept in one of its attributes instead.
+     *
+     * @param httpSession a HTTP session
+     * @return the mutex of the HTTP session, created on first use
+     */
+    private Object getMutex(HttpSession httpSession)
+    {
+        Object mutex = httpSession.getAttribute(MUTEX_ATTRIBUTE);
+        if (mutex == null) {
+            // Rare: once per HTTP session, so one lock for all the sessions is fine
+            synchronized (this) {
+                mutex = httpSession.getAttribute(MUTEX_ATTRIBUTE);
+                if (mutex == null) {
+                    mutex = new Mutex();
+                    httpSession.setAttribute(MUTEX_ATTRIBUTE, mutex);
+                }
+            }
+        }
+        return mutex;
+    }
+
+    @Override
+    public void save(HttpServletRequest request, SocialAuthSession session)
+    {
+        HttpSession httpSession = request.getSession(false);
+        if (httpSession != null && httpSession.getAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE) == session) {
+            // Setting the attribute again tells the containers replicating the sessions that it has changed
+            httpSession.setAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE, session);
+        }
+    }
+
+    @Override
+    public void remove(HttpServletRequest request, HttpServletResponse response)
+    {
+        HttpSession httpSession = request.getSession(false);
+        if (httpSession != null) {
+            httpSession.removeAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
+        }
+    }
+
+    /**
+     * A mutex which survives the serialization of the HTTP session.
+     */
+    private static final class Mutex implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import javax.inject.Inject;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+
+/**
+ * Default {@link SocialHttpClientProvider}, backed by a pool of persistent connections bounded per host and in total.
+ * Connections left idle are closed by a background thread.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultSocialHttpClientProvider implements SocialHttpClientProvider, Initializable, Disposable
+{
+    /** Time after which an idle connection is closed, in milliseconds. */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    @Inject
+    private SocialAuthConfiguration configuration;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+
+    private IdleConnectionTimeoutThread idleConnectionCloser;
+
+    private HttpClient httpClient;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = this.connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(this.configuration.getHttpMaxConnectionsPerHost());
+        params.setMaxTotalConnections(this.configuration.getHttpMaxConnections());
+        params.setConnectionTimeout(this.configuration.getHttpConnectionTimeout());
+        params.setSoTimeout(this.configuration.getHttpSocketTimeout());
+        params.setStaleCheckingEnabled(true);
+
+        this.httpClient = new HttpClient(this.connectionManager);
+        // Don't wait longer for a pooled connection than for a new one
+        this.httpClient.getParams().setConnectionManagerTimeout(this.configuration.getHttpConnectionTimeout());
+
+        this.idleConnectionCloser = new IdleConnectionTimeoutThread();
+        this.idleConnectionCloser.setName("Social login idle HTTP connection closer");
+        this.idleConnectionCloser.addConnectionManager(this.connectionManager);
+        this.idleConnectionCloser.setConnectionTimeout(IDLE_TIMEOUT);
+        this.idleConnectionCloser.setTimeoutInterval(IDLE_TIMEOUT);
+        this.idleConnectionCloser.start();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.idleConnectionCloser.shutdown();
+        this.connectionManager.shutdown();
+    }
+
+    @Override
+    public HttpClient getHttpClient()
+    {
+        return this.httpClient;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link SocialIdentityIndex}. Known users are kept in a bounded LRU cache, unknown identities in a smaller
+ * cache with a short time to live, so that an identity registering right after a failed lookup is found quickly even
+ * if an event was missed. A lookup which runs while an identity is removed doesn't cache its result, which may be
+ * older than the removal.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultSocialIdentityIndex implements SocialIdentityIndex, Initializable
+{
+    private static final String CACHE_ID = "socialauth.identities";
+
+    private static final String MISSING_CACHE_ID = "socialauth.identities.missing";
+
+    private static final int CACHE_SIZE = 10000;
+
+    /** Time to live of a known user, in seconds. */
+    private static final int CACHE_TIME_TO_LIVE = 3600;
+
+    private static final int MISSING_CACHE_SIZE = 1000;
+
+    /** Time to live of an unknown identity, in seconds. */
+    private static final int MISSING_CACHE_TIME_TO_LIVE = 60;
+
+    private static final String QUERY_STATEMENT = "from doc.object(XWiki.XWikiUsers) as user,"
+        + " doc.object(XWiki.SocialLoginProfileClass) as profile"
+        + " where profile.provider = :provider and profile.validatedId = :validated";
+
+    /** Point lookup on the unique index of the mapped table, see {@link SocialLoginProfileMapping}. */
+    private static final String MAPPED_QUERY_STATEMENT = "select obj.name from BaseObject as obj,"
+        + " BaseObject as user, " + SocialLoginProfileMapping.ENTITY_NAME + " as profile"
+        + " where profile.provider = :provider and profile.validatedId = :validated and obj.id = profile.id"
+        + " and user.name = obj.name and user.className = 'XWiki.XWikiUsers'";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private SocialLoginProfileMapping mapping;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    private Cache<DocumentReference> users;
+
+    private Cache<Boolean> missing;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Incremented by each removal, so that the lookups running meanwhile don't cache a stale result. */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.users = this.cacheManager.createNewCache(newConfiguration(CACHE_ID, CACHE_SIZE, CACHE_TIME_TO_LIVE));
+            this.missing =
+                this.cacheManager.createNewCache(newConfiguration(MISSING_CACHE_ID, MISSING_CACHE_SIZE,
+                    MISSING_CACHE_TIME_TO_LIVE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the social identity caches", e);
+        }
+    }
+
+    @Override
+    public DocumentReference getUser(String provider, String id)
+    {
+        if (provider == null || id == null) {
+            return null;
+        }
+        String key = CacheKeys.getKey(getContext().getDatabase(), provider, id);
+
+        DocumentReference user = this.users.get(key);
+        if (user != null) {
+            this.hits.incrementAndGet();
+            return user;
+        }
+        if (this.missing.get(key) != null) {
+            this.hits.incrementAndGet();
+            return null;
+        }
+
+        this.misses.incrementAndGet();
+        long lookupGeneration = this.generation.get();
+        try {
+            Query query =
+                this.mapping.isActive() ? this.queryManager.createQuery(MAPPED_QUERY_STATEMENT, Query.HQL)
+                    : this.queryManager.createQuery(QUERY_STATEMENT, Query.XWQL);
+            query.bindValue("provider", provider);
+            query.bindValue("validated", id);
+
+            List<String> results = query.execute();
+            if (results.isEmpty()) {
+                cache(this.missing, key, Boolean.TRUE, lookupGeneration);
+                return null;
+            }
+
+            // The query gives the full name of the document in the current wiki, no need to load the document
+            user = this.resolver.resolve(results.get(0));
+            cache(this.users, key, user, lookupGeneration);
+            return user;
+        } catch (QueryException e) {
+            this.logger.error("Failed to query for user with provider [{}] and id [{}]", provider, id);
+            return null;
+        }
+    }
+
+    @Override
+    public void remove(String wiki, String provider, String id)
+    {
+        if (provider == null || id == null) {
+            return;
+        }
+        String key = CacheKeys.getKey(wiki, provider, id);
+        this.generation.incrementAndGet();
+        this.users.remove(key);
+        this.missing.remove(key);
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * Caches the result of a lookup, unless an identity has been removed since the lookup started.
+     *
+     * @param lookupGeneration the generation when the lookup started
+     */
+    private <T> void cache(Cache<T> cache, String key, T value, long lookupGeneration)
+    {
+        if (this.generation.get() != lookupGeneration) {
+            return;
+        }
+        cache.set(key, value);
+        // A removal between the check and the set may have missed the value, drop it to be safe
+        if (this.generation.get() != lookupGeneration) {
+            cache.remove(key);
+        }
+    }
+
+    private CacheConfiguration newConfiguration(String id, int size, int timeToLive)
+    {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setConfigurationId(id);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(size);
+        lru.setTimeToLive(timeToLive);
+        configuration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        return configuration;
+    }
+
+    private XWikiContext getContext()
+    {
+        return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.social.authentication.SocialAuthConstants;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.classes.BaseClass;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Default {@link SocialLoginProfileMapping}. Only the <tt>provider</tt> and <tt>validatedId</tt> properties are
+ * mapped, the other properties of the social profiles stay in the generic property tables.
+ * <p>
+ * The migration of a wiki runs in the background, so that it doesn't hold the logins. It is refused while two social
+ * profiles have the same identity, since the mapped table can hold only one of them. The table is created and filled
+ * before the mapping is saved in the class, so that every social profile can still be loaded once it is. The profiles
+ * saved while the table was filled are copied last, while the saves of social profiles in the wiki are held, and the
+ * class is switched before they are released: a profile saved in the generic tables after the last copy would not be
+ * loaded anymore, and a duplicate identity would make the copy fail after the class was switched.
+ * </p>
+ * <p>
+ * Saves are only held in this server, the switch of a wiki is not coordinated between the members of a cluster.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultSocialLoginProfileMapping extends AbstractBackgroundWorker<String> implements
+    SocialLoginProfileMapping, SocialAuthConstants
+{
+    private static final String CUSTOM_MAPPING_KEY = "xwiki.authentication.socialLogin.customMapping";
+
+    private static final String CLASS_NAME = "XWiki.SocialLoginProfileClass";
+
+    private static final String PROVIDER = "provider";
+
+    private static final String VALIDATED_ID = "validatedId";
+
+    /** The properties of the Hibernate mapping, the id is added by the store. */
+    private static final String MAPPING = "<property name=\"provider\" type=\"string\">"
+        + "<column name=\"XWS_PROVIDER\" length=\"32\" unique-key=\"SOCIALLOGIN_IDENTITY\"/></property>\n"
+        + "<property name=\"validatedId\" type=\"string\">"
+        + "<column name=\"XWS_VALIDATED_ID\" length=\"200\" unique-key=\"SOCIALLOGIN_IDENTITY\"/></property>";
+
+    /** The identities used by more than one social profile stored in the generic tables. */
+    private static final String DUPLICATES_QUERY = "select provider.value, validated.value from BaseObject as obj,"
+        + " StringProperty as provider, StringProperty as validated where obj.className = :className"
+        + " and provider.id.id = obj.id and provider.id.name = 'provider'"
+        + " and validated.id.id = obj.id and validated.id.name = 'validatedId'"
+        + " group by provider.value, validated.value having count(obj.id) > 1";
+
+    /** Number of social profiles copied in each transaction of the backfill. */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Time after which a profile save is not waited for anymore by the switch, in milliseconds. A save that fails
+     * never reports its end.
+     */
+    private static final long SAVE_TIMEOUT = 60000L;
+
+    /** Whether the mapping is active, by wiki. */
+    private final ConcurrentMap<String, Boolean> wikis = new ConcurrentHashMap<String, Boolean>();
+
+    /** Guards {@link #switching} and {@link #saves}, and is notified when they change. */
+    private final Object gate = new Object();
+
+    /** The wikis whose mapping is being switched on, holding the profile saves. */
+    private final Set<String> switching = new HashSet<String>();
+
+    /** The profile saves in progress in the wikis not mapped yet, by thread. */
+    private final Map<Thread, ProfileSave> saves = new HashMap<Thread, ProfileSave>();
+
+    @Override
+    public boolean isActive()
+    {
+        XWikiContext context = getXWikiContext();
+        if (!"1".equals(context.getWiki().Param(CUSTOM_MAPPING_KEY))) {
+            return false;
+        }
+
+        String wiki = context.getDatabase();
+        Boolean active = this.wikis.get(wiki);
+        if (active == null) {
+            // A class already saved with the mapping has its new profiles in the mapped table only
+            boolean mapped = isMapped(context);
+            if (this.wikis.putIfAbsent(wiki, mapped) == null) {
+                // Migrate the wiki, or finish a migration that was interrupted, without holding the login
+                submit(wiki, wiki);
+            }
+            active = this.wikis.get(wiki);
+        }
+        return active;
+    }
+
+    @Override
+    public void startProfileSave(String wiki)
+    {
+        if (Boolean.TRUE.equals(this.wikis.get(wiki))) {
+            // The class is mapped already, it is not switched anymore
+            return;
+        }
+        synchronized (this.gate) {
+            while (this.switching.contains(wiki)) {
+                try {
+                    this.gate.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.logger.warn("Interrupted while waiting for the custom mapping of social profiles to be "
+                        + "enabled in wiki [{}]", wiki);
+                    break;
+                }
+            }
+            this.saves.put(Thread.currentThread(), new ProfileSave(wiki));
+        }
+    }
+
+    @Override
+    public void endProfileSave()
+    {
+        synchronized (this.gate) {
+            if (this.saves.remove(Thread.currentThread()) != null) {
+                this.gate.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Holds the new profile saves of a wiki, and waits for the ones in progress to end.
+     *
+     * @param wiki the wiki whose mapping is switched
+     * @throws InterruptedException if interrupted while waiting, in which case the saves are not held
+     */
+    void holdProfileSaves(String wiki) throws InterruptedException
+    {
+        synchronized (this.gate) {
+            this.switching.add(wiki);
+            try {
+                long now = System.currentTimeMillis();
+                while (hasProfileSaves(wiki, now)) {
+                    this.gate.wait(SAVE_TIMEOUT);
+                    now = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                releaseProfileSaves(wiki);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Lets the profile saves of a wiki go on.
+     *
+     * @param wiki the wiki whose mapping has been switched, or failed to
+     */
+    void releaseProfileSaves(String wiki)
+    {
+        synchronized (this.gate) {
+            this.switching.remove(wiki);
+            this.gate.notifyAll();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if a profile save is in progress in the wiki, forgetting the saves that timed out
+     */
+    private boolean hasProfileSaves(String wiki, long now)
+    {
+        boolean found = false;
+        for (Iterator<ProfileSave> it = this.saves.values().iterator(); it.hasNext();) {
+            ProfileSave save = it.next();
+            if (save.started < now - SAVE_TIMEOUT) {
+                it.remove();
+            } else if (save.wiki.equals(wiki)) {
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    protected String getName()
+    {
+        return "Social login profile mapping";
+    }
+
+    @Override
+    protected int getCapacity()
+    {
+        return 100;
+    }
+
+    @Override
+    protected int getMaxAttempts()
+    {
+        return 3;
+    }
+
+    @Override
+    protected void process(String wiki, XWikiContext context) throws Exception
+    {
+        XWiki xwiki = context.getWiki();
+        if (!xwiki.hasCustomMappings() || !xwiki.hasDynamicCustomMappings()) {
+            this.logger.warn("The custom mapping of social profiles requires custom mappings and dynamic custom "
+                + "mappings to be enabled in xwiki.cfg, falling back to the generic storage");
+            return;
+        }
+
+        XWikiDocument classDocument = xwiki.getDocument(getClassReference(context), context);
+        if (classDocument.getXClass().get(VALIDATED_ID) == null) {
+            // The class is not installed in this wiki
+            return;
+        }
+        XWikiHibernateStore store = xwiki.getHibernateStore();
+        boolean isNew = !MAPPING.equals(classDocument.getXClass().getCustomMapping());
+
+        if (isNew) {
+            List<Object[]> duplicates = findDuplicates(store, context);
+            if (!duplicates.isEmpty()) {
+                Object[] duplicate = duplicates.get(0);
+                this.logger.error("[{}] social identities are used by more than one profile in wiki [{}], such as"
+                    + " [{}] [{}]: the custom mapping of social profiles stays disabled until they are fixed and the"
+                    + " server is restarted", new Object[] {duplicates.size(), wiki, duplicate[0], duplicate[1]});
+                return;
+            }
+            classDocument = classDocument.clone();
+            classDocument.getXClass().setCustomMapping(MAPPING);
+        }
+        BaseClass mappedClass = classDocument.getXClass();
+
+        // Make the mapping known and the table exist before any profile is saved with it
+        if (store.injectCustomMapping(mappedClass, context)) {
+            store.injectUpdatedCustomMappings(context);
+        }
+        store.updateSchema(mappedClass, context);
+
+        // Every profile has to be in the mapped table before the class says it is, or it could not be loaded anymore
+        backfill(store, context);
+        if (isNew) {
+            holdProfileSaves(wiki);
+            try {
+                // The profiles saved while the table was filled are in the generic tables only
+                backfill(store, context);
+                xwiki.saveDocument(classDocument, "Enable the custom mapping of social profiles", true, context);
+                this.wikis.put(wiki, Boolean.TRUE);
+            } finally {
+                releaseProfileSaves(wiki);
+            }
+        }
+    }
+
+    private boolean isMapped(XWikiContext context)
+    {
+        try {
+            XWikiDocument classDocument = context.getWiki().getDocument(getClassReference(context), context);
+            return MAPPING.equals(classDocument.getXClass().getCustomMapping());
+        } catch (XWikiException e) {
+            this.logger.error("Failed to load the social profile class of wiki [{}]", context.getDatabase(), e);
+            return false;
+        }
+    }
+
+    private DocumentReference getClassReference(XWikiContext context)
+    {
+        return new DocumentReference(context.getDatabase(), SOCIAL_LOGIN_PROFILE_CLASS.getLastSpaceReference()
+            .getName(), SOCIAL_LOGIN_PROFILE_CLASS.getName());
+    }
+
+    /**
+     * @return the provider and validated id of the identities used by more than one social profile
+     */
+    private List<Object[]> findDuplicates(XWikiHibernateStore store, XWikiContext context) throws XWikiException
+    {
+        return store.executeRead(context, true, new HibernateCallback<List<Object[]>>()
+        {
+            @Override
+            public List<Object[]> doInHibernate(Session session) throws HibernateException, XWikiException
+            {
+                return findDuplicates(session);
+            }
+        });
+    }
+
+    /**
+     * @return the provider and validated id of the identities used by more than one social profile
+     */
+    @SuppressWarnings("unchecked")
+    List<Object[]> findDuplicates(Session session)
+    {
+        return session.createQuery(DUPLICATES_QUERY).setString("className", CLASS_NAME).list();
+    }
+
+    /**
+     * Copies the identities of the social profiles stored in the generic tables to the mapped table. Profiles that
+     * already have a row in the mapped table are left alone, so running it again is harmless.
+     *
+     * @throws XWikiException if a batch fails, in which case the mapping must not be enabled
+     */
+    void backfill(XWikiHibernateStore store, XWikiContext context) throws XWikiException
+    {
+        Set<String> identities = new HashSet<String>();
+        int copied = 0;
+        int offset = 0;
+        int count;
+        do {
+            int[] result = backfillBatch(store, context, offset, identities);
+            count = result[0];
+            copied += result[1];
+            offset += count;
+        } while (count == BATCH_SIZE);
+
+        this.logger.info("Copied [{}] social profiles to the mapped table in wiki [{}]", copied,
+            context.getDatabase());
+    }
+
+    /**
+     * Copies a batch of social profiles in its own transaction.
+     *
+     * @return the number of social profiles processed, and the number of social profiles copied
+     */
+    int[] backfillBatch(XWikiHibernateStore store, XWikiContext context, final int first,
+        final Set<String> identities) throws XWikiException
+    {
+        return store.executeWrite(context, true, new HibernateCallback<int[]>()
+        {
+            @Override
+            public int[] doInHibernate(Session session) throws HibernateException, XWikiException
+            {
+                return backfill(session, first, identities);
+            }
+        });
+    }
+
+    /**
+     * @return the number of social profiles processed, and the number of social profiles copied
+     */
+    @SuppressWarnings("unchecked")
+    int[] backfill(Session session, int first, Set<String> identities)
+    {
+        List<?> ids =
+            session.createQuery("select obj.id from BaseObject as obj where obj.className = :className"
+                + " order by obj.id").setString("className", CLASS_NAME).setFirstResult(first)
+                .setMaxResults(BATCH_SIZE).list();
+        if (ids.isEmpty()) {
+            return new int[] {0, 0};
+        }
+
+        List<Object[]> rows =
+            session.createQuery("select prop.id.id, prop.id.name, prop.value from StringProperty as prop"
+                + " where prop.id.id in (:ids) and prop.id.name in (:names)").setParameterList("ids", ids)
+                .setParameterList("names", new String[] {PROVIDER, VALIDATED_ID}).list();
+        Map<Long, Map<String, Object>> profiles = new HashMap<Long, Map<String, Object>>();
+        for (Object[] row : rows) {
+            Long id = ((Number) row[0]).longValue();
+            Map<String, Object> profile = profiles.get(id);
+            if (profile == null) {
+                profile = new HashMap<String, Object>();
+                profile.put("id", id);
+                profiles.put(id, profile);
+            }
+            profile.put((String) row[1], row[2]);
+        }
+
+        Session mapSession = session.getSession(EntityMode.MAP);
+        int copied = 0;
+        for (Map.Entry<Long, Map<String, Object>> profile : profiles.entrySet()) {
+            Object provider = profile.getValue().get(PROVIDER);
+            Object validatedId = profile.getValue().get(VALIDATED_ID);
+            if (mapSession.get(ENTITY_NAME, profile.getKey()) != null) {
+                continue;
+            }
+            if (provider != null && validatedId != null
+                && (!identities.add(provider + "\n" + validatedId) || isMapped(session, provider, validatedId))) {
+                // Skipping the profile would leave its document impossible to load once the class is mapped
+                throw new HibernateException("Social identity [" + provider + "] [" + validatedId + "] of object ["
+                    + profile.getKey() + "] is already used by another profile");
+            }
+            mapSession.save(ENTITY_NAME, profile.getValue());
+            copied++;
+        }
+        mapSession.flush();
+
+        return new int[] {ids.size(), copied};
+    }
+
+    /**
+     * @return <code>true</code> if the mapped table already has a row for this identity
+     */
+    private boolean isMapped(Session session, Object provider, Object validatedId)
+    {
+        return !session.createQuery("select profile.id from " + ENTITY_NAME + " as profile"
+            + " where profile.provider = :provider and profile.validatedId = :validated")
+            .setParameter("provider", provider).setParameter("validated", validatedId).setMaxResults(1).list()
+            .isEmpty();
+    }
+
+    /**
+     * A profile save in progress.
+     */
+    private static final class ProfileSave
+    {
+        private final String wiki;
+
+        /** The date the save started at, in milliseconds. */
+        private final long started = System.currentTimeMillis();
+
+        ProfileSave(String wiki)
+        {
+            this.wiki = wiki;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link UsernameAllocator}. The next free suffix of each base name is kept in a bounded LRU cache. A counter
+ * is seeded with a single query for the pages already using the base name, and is then incremented atomically for
+ * each name handed out. The page of the chosen name is still checked once, in case it was created by other means.
+ * The names handed out are reserved until their page is saved, since a counter evicted in the meantime is seeded
+ * again from the storage.
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultUsernameAllocator implements UsernameAllocator, Initializable
+{
+    private static final String CACHE_ID = "socialauth.usernames";
+
+    private static final int CACHE_SIZE = 10000;
+
+    private static final String SPACE = "XWiki";
+
+    private static final String SUFFIX_SEPARATOR = "_";
+
+    private static final String QUERY_STATEMENT = "select doc.name from XWikiDocument as doc where doc.space = :space"
+        + " and (doc.name = :name or doc.name like :pattern escape '!')";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    private Cache<Counter> counters;
+
+    /** The names handed out whose page is not saved yet, by wiki. */
+    private final Set<String> reserved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        configuration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.counters = this.cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the user name cache", e);
+        }
+    }
+
+    @Override
+    public String allocate(String name)
+    {
+        XWikiContext context = getContext();
+        return allocate(context.getDatabase(), context.getWiki().clearName(name, true, true, context));
+    }
+
+    @Override
+    public void release(String wiki, String username)
+    {
+        this.reserved.remove(CacheKeys.getKey(wiki, username));
+    }
+
+    /**
+     * @param wiki the wiki to allocate the name in
+     * @param base the wanted name, cleaned up
+     * @return the allocated name
+     */
+    String allocate(String wiki, String base)
+    {
+        Counter counter = getCounter(wiki, base);
+        while (true) {
+            int suffix = counter.next(wiki, base);
+            String username = suffix < 0 ? base : base + SUFFIX_SEPARATOR + suffix;
+            String key = CacheKeys.getKey(wiki, username);
+            if (this.reserved.add(key)) {
+                if (!exists(wiki, username)) {
+                    return username;
+                }
+                this.reserved.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the user page exists in the wiki
+     */
+    boolean exists(String wiki, String username)
+    {
+        XWikiContext context = getContext();
+        return context.getWiki().exists(new DocumentReference(wiki, SPACE, username), context);
+    }
+
+    private Counter getCounter(String wiki, String base)
+    {
+        String key = CacheKeys.getKey(wiki, base);
+        synchronized (this.counters) {
+            Counter counter = this.counters.get(key);
+            if (counter == null) {
+                counter = new Counter();
+                this.counters.set(key, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @return the suffix following the highest suffix used by the existing pages of the base name, <code>-1</code> if
+     *         even the base name is free
+     */
+    int getNextSuffix(String wiki, String base) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(QUERY_STATEMENT, Query.HQL);
+        query.setWiki(wiki);
+        query.bindValue("space", SPACE);
+        query.bindValue("name", base);
+        query.bindValue("pattern", escapeLike(base + SUFFIX_SEPARATOR) + "%");
+
+        int next = -1;
+        List<String> names = query.execute();
+        for (String existing : names) {
+            if (existing.equals(base)) {
+                next = Math.max(next, 0);
+            } else {
+                String suffix = existing.substring(base.length() + 1);
+                if (StringUtils.isNumeric(suffix) && suffix.length() < 10) {
+                    next = Math.max(next, Integer.parseInt(suffix) + 1);
+                }
+            }
+        }
+        return next;
+    }
+
+    private String escapeLike(String value)
+    {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
+    private XWikiContext getContext()
+    {
+        return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+    }
+
+    /**
+     * The next suffix to hand out for a base name, seeded from the storage on first use.
+     */
+    private final class Counter
+    {
+        private boolean seeded;
+
+        private int next;
+
+        /**
+         * @return the suffix to use, <code>-1</code> for the base name itself
+         */
+        synchronized int next(String wiki, String base)
+        {
+            if (!this.seeded) {
+                try {
+                    this.next = getNextSuffix(wiki, base);
+                } catch (QueryException e) {
+                    // Fall back on the existence checks
+                    logger.warn("Failed to query the users named [{}]: {}", base, e.getMessage());
+                    this.next = -1;
+                }
+                this.seeded = true;
+            }
+            return this.next++;
+        }
+    }
+}
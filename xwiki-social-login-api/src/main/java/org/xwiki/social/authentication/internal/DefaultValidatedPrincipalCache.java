@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Default {@link ValidatedPrincipalCache}, backed by a bounded LRU cache with a time to live. Only a digest of the
+ * presented credentials is kept in memory.
+ * <p>
+ * The cache is indexed by session, so the validations of a principal are forgotten by remembering when the principal
+ * was invalidated: a validation made before is not used anymore. Those invalidation dates are kept for the time to
+ * live of the cache, after which the validations they apply to have expired anyway.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component
+public class DefaultValidatedPrincipalCache implements ValidatedPrincipalCache, Initializable
+{
+    private static final String CACHE_ID = "socialauth.principals";
+
+    private static final int CACHE_SIZE = 10000;
+
+    /** Time to live of a validated principal, in seconds. */
+    private static final int CACHE_TIME_TO_LIVE = 300;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    private Cache<ValidatedPrincipal> cache;
+
+    /** The date each principal was last invalidated at, in milliseconds, for the time to live of the cache. */
+    private final ConcurrentMap<String, Long> invalidations = new ConcurrentHashMap<String, Long>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        lru.setTimeToLive(CACHE_TIME_TO_LIVE);
+        configuration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+        try {
+            this.cache = this.cacheManager.createNewCache(configuration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the validated principal cache", e);
+        }
+    }
+
+    @Override
+    public String get(String sessionId, String username, String password, String encryptedPassword)
+    {
+        if (sessionId == null) {
+            return null;
+        }
+        ValidatedPrincipal entry = this.cache.get(sessionId);
+        if (entry != null && StringUtils.equals(entry.encryptedPassword, encryptedPassword)
+            && entry.credentials.equals(digest(username, password)) && !isInvalidated(entry)) {
+            return entry.principal;
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String sessionId, String username, String password, String encryptedPassword, String principal)
+    {
+        if (sessionId != null) {
+            this.cache.set(sessionId, new ValidatedPrincipal(digest(username, password), encryptedPassword, principal,
+                System.currentTimeMillis()));
+        }
+    }
+
+    @Override
+    public void invalidate(String sessionId)
+    {
+        if (sessionId != null) {
+            this.cache.remove(sessionId);
+        }
+    }
+
+    @Override
+    public void invalidatePrincipal(String principal)
+    {
+        if (principal == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        this.invalidations.put(principal, now);
+
+        // Forget the invalidations older than the validations still cached
+        long expired = now - CACHE_TIME_TO_LIVE * 1000L;
+        for (Iterator<Long> it = this.invalidations.values().iterator(); it.hasNext();) {
+            if (it.next() < expired) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the principal of the entry has been invalidated since it was validated, including
+     *         in the same millisecond
+     */
+    private boolean isInvalidated(ValidatedPrincipal entry)
+    {
+        Long invalidated = this.invalidations.get(entry.principal);
+        return invalidated != null && entry.validated <= invalidated;
+    }
+
+    private String digest(String username, String password)
+    {
+        return DigestUtils.sha256Hex(StringUtils.defaultString(username) + '\n' + StringUtils.defaultString(password));
+    }
+
+    /**
+     * A principal validated for a digest of credentials.
+     */
+    private static final class ValidatedPrincipal
+    {
+        private final String credentials;
+
+        private final String encryptedPassword;
+
+        private final String principal;
+
+        /** The date the principal was validated at, in milliseconds. */
+        private final long validated;
+
+        ValidatedPrincipal(String credentials, String encryptedPassword, String principal, long validated)
+        {
+            this.credentials = credentials;
+            this.encryptedPassword = encryptedPassword;
+            this.principal = principal;
+            this.validated = validated;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Adds the new users to the initial groups of their wiki in the background, several users at a time, so that the
+ * first logins of many users don't all wait on saving the same group documents.
+ *
+ * @version $Id$
+ */
+@Role
+public interface GroupMembershipBuffer
+{
+    /**
+     * Queues the addition of a new user to the initial groups of its wiki (<tt>xwiki.users.initialGroups</tt>, which
+     * defaults to <tt>XWiki.XWikiAllGroup</tt> unless all users are implicitly part of it). The groups are saved with
+     * the other users queued in the meantime, within a few seconds.
+     * <p>
+     * Until then the user is not a member of these groups: the rights granted through them don't apply to the first
+     * pages the user sees (setting <tt>xwiki.authentication.group.allgroupimplicit</tt> makes every user a member of
+     * <tt>XWiki.XWikiAllGroup</tt> at once). The queued members are kept in memory only: they are saved when the
+     * component is disposed, but lost if the process dies before the next flush.
+     * </p>
+     *
+     * @param user the new user
+     */
+    void addMember(DocumentReference user);
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes the <tt>Set-Cookie</tt> headers of the cookies of the social login module. They are written by hand since
+ * the servlet API we build against doesn't know about <tt>HttpOnly</tt> cookies.
+ *
+ * @version $Id$
+ */
+final class HttpOnlyCookies
+{
+    /** Private Constructor since this is a utility class. */
+    private HttpOnlyCookies()
+    {
+    }
+
+    /**
+     * Adds an <tt>HttpOnly</tt> cookie for the whole web application to the response. The cookie is only sent back
+     * over HTTPS when the request came over HTTPS.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param name the name of the cookie
+     * @param value the value of the cookie, <code>null</code> for an empty value
+     * @param maxAge the lifetime of the cookie in seconds, <code>0</code> to remove it, negative for a cookie lasting
+     *            until the browser is closed
+     */
+    static void addCookie(HttpServletRequest request, HttpServletResponse response, String name, String value,
+        int maxAge)
+    {
+        response.addHeader("Set-Cookie", format(name, value,
+            StringUtils.defaultIfEmpty(request.getContextPath(), "/"), maxAge, request.isSecure()));
+    }
+
+    /**
+     * @return the value of the <tt>Set-Cookie</tt> header of the cookie
+     */
+    static String format(String name, String value, String path, int maxAge, boolean secure)
+    {
+        StringBuilder cookie = new StringBuilder(name).append('=').append(StringUtils.defaultString(value));
+        cookie.append("; Path=").append(path);
+        if (maxAge >= 0) {
+            cookie.append("; Max-Age=").append(maxAge);
+        }
+        cookie.append("; HttpOnly");
+        if (secure) {
+            cookie.append("; Secure");
+        }
+        return cookie.toString();
+    }
+}
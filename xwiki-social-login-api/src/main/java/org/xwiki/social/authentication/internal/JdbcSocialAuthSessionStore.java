@@ -0,0 +1,660 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+import org.xwiki.social.authentication.SocialAuthSession;
+
+/**
+ * {@link SocialAuthSessionStore} keeping the social sessions in a database, so that they survive the restarts of the
+ * nodes and are shared by the nodes of a cluster. A social session is identified by a random id, given to the browser
+ * in a cookie.
+ * <p>
+ * A cluster still needs sticky sessions: the OAuth handshakes, the single-flight of the provider calls and the
+ * username counters are kept in the memory of each node, so a login has to come back to the node it started on, and
+ * a change made by one node, a logout included, is only seen by the others once their cached copy has expired, up to
+ * a minute later. What this store brings is that the social sessions survive a restart, or the loss of a node.
+ * </p>
+ * <p>
+ * The sessions are stored encrypted with the {@link SessionSecretCipher}, since they hold the access tokens and the
+ * secret of the users. They are encrypted when they are saved, and written later as they were then. Reading them back
+ * only accepts the explicit form written by {@link SocialAuthSession}, which names no other class.
+ * </p>
+ * <p>
+ * The sessions read or written by a node are kept in a bounded cache for a minute, so that the database is read once
+ * per session and minute at most; a change made by another node is seen once the cached session has expired. The
+ * changes are written in batches by a background thread every second, keeping only the last change of each session,
+ * and the sessions not used for {@link SocialAuthConfiguration#getSessionTimeToLive()} are removed from the database
+ * every ten minutes.
+ * </p>
+ * <p>
+ * The database is set with {@link SocialAuthConfiguration#getSessionDatabaseURL()}, an embedded HSQLDB database in
+ * the permanent directory by default, and its JDBC driver, set with
+ * {@link SocialAuthConfiguration#getSessionDatabaseDriver()}, has to be available to the web application. The
+ * <tt>SOCIALLOGIN_SESSIONS</tt> table is created on first use if it doesn't exist; it can also be created beforehand,
+ * with column types suited to the database, as long as <tt>SLS_DATA</tt> holds 16384 characters.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component("jdbc")
+public class JdbcSocialAuthSessionStore implements SocialAuthSessionStore, Initializable, Disposable
+{
+    /** Name of the cookie identifying the social session. */
+    private static final String SESSION_COOKIE = "sl_session";
+
+    /** Request attribute holding the id of the social session of the request, set before the cookie is sent back. */
+    private static final String ID_ATTRIBUTE = "org.xwiki.social.authentication.SocialAuthSession.id";
+
+    private static final String CACHE_ID = "socialauth.sessions";
+
+    private static final int CACHE_SIZE = 10000;
+
+    /** Time a session is kept in memory, in seconds, short since the other nodes can change it. */
+    private static final int CACHE_TIME_TO_LIVE = 60;
+
+    private static final int ID_LENGTH = 16;
+
+    private static final int MAX_ID_LENGTH = 32;
+
+    /** Maximum size of a serialized session, in bytes, enough for a session connected to several providers. */
+    private static final int MAX_SESSION_SIZE = 4 * SocialAuthSession.SERIALIZED_SIZE_BUDGET;
+
+    /**
+     * Maximum length of an encrypted session: it is encoded in base 64 twice, before and after being encrypted, which
+     * takes 16/9 of its size plus a few characters.
+     */
+    private static final int DATA_LENGTH = 2 * MAX_SESSION_SIZE;
+
+    /** Time between two batches of writes, in milliseconds. */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    /** Time between two removals of the expired sessions, in seconds. */
+    private static final long SWEEP_INTERVAL = 600;
+
+    /** The driver of the default database. */
+    private static final String HSQLDB_DRIVER = "org.hsqldb.jdbcDriver";
+
+    private static final String TABLE = "SOCIALLOGIN_SESSIONS";
+
+    private static final String CREATE_TABLE = "create table " + TABLE
+        + " (SLS_ID varchar(" + MAX_ID_LENGTH + ") not null primary key, SLS_EXPIRES bigint not null,"
+        + " SLS_DATA varchar(" + DATA_LENGTH + ") not null)";
+
+    private static final String CREATE_INDEX = "create index SOCIALLOGIN_SESSIONS_EXPIRES on " + TABLE
+        + " (SLS_EXPIRES)";
+
+    private static final String CHECK = "select SLS_ID from " + TABLE + " where 1 = 0";
+
+    private static final String SELECT = "select SLS_DATA, SLS_EXPIRES from " + TABLE
+        + " where SLS_ID = ? and SLS_EXPIRES > ?";
+
+    private static final String INSERT = "insert into " + TABLE + " (SLS_ID, SLS_EXPIRES, SLS_DATA) values (?, ?, ?)";
+
+    private static final String DELETE = "delete from " + TABLE + " where SLS_ID = ?";
+
+    private static final String SWEEP = "delete from " + TABLE + " where SLS_EXPIRES <= ?";
+
+    /** Marks the sessions removed, in the cache and the pending writes. */
+    private static final Entry REMOVED = new Entry(null, null, 0);
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SocialAuthConfiguration configuration;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private SessionSecretCipher cipher;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** The sessions to write with the next batch, by id, only the last change of a session is kept. */
+    private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+
+    /** The sessions read or written recently by this node, by id. */
+    private Cache<Entry> sessions;
+
+    /** The JDBC URL of the database, set on first use. */
+    private String url;
+
+    /** Writes the batches and removes the expired sessions, started on first use. */
+    private volatile ScheduledExecutorService scheduler;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId(CACHE_ID);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(CACHE_SIZE);
+        lru.setTimeToLive(CACHE_TIME_TO_LIVE);
+        cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.sessions = this.cacheManager.createNewCache(cacheConfiguration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the social session cache", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            // Don't lose the last changes
+            flush();
+        }
+    }
+
+    @Override
+    public SocialAuthSession get(HttpServletRequest request)
+    {
+        String id = getId(request);
+        if (id == null) {
+            return null;
+        }
+        Entry entry = getEntry(id);
+        if (entry.session == null) {
+            return null;
+        }
+        request.setAttribute(ID_ATTRIBUTE, id);
+        if (entry.expires - System.currentTimeMillis() < this.configuration.getSessionTimeToLive() * 500L) {
+            // Used after half of its time to live, keep it longer
+            save(id, entry.session);
+        }
+        return entry.session;
+    }
+
+    @Override
+    public SocialAuthSession create(HttpServletRequest request, HttpServletResponse response)
+    {
+        String previousId = getId(request);
+        if (previousId != null) {
+            remove(previousId);
+        }
+
+        byte[] bytes = new byte[ID_LENGTH];
+        this.random.nextBytes(bytes);
+        String id = Base64.encodeBase64URLSafeString(bytes);
+        SocialAuthSession session = new SocialAuthSession();
+        save(id, session);
+        request.setAttribute(ID_ATTRIBUTE, id);
+        // Kept until the browser is closed, like the cookie of the HTTP session
+        setSessionCookie(request, response, id, -1);
+        return session;
+    }
+
+    @Override
+    public SocialAuthSession getOrCreate(HttpServletRequest request, HttpServletResponse response)
+    {
+        SocialAuthSession session = get(request);
+        if (session == null) {
+            session = create(request, response);
+        }
+        return session;
+    }
+
+    @Override
+    public void save(HttpServletRequest request, SocialAuthSession session)
+    {
+        String id = getId(request);
+        if (id != null) {
+            save(id, session);
+        }
+    }
+
+    @Override
+    public void remove(HttpServletRequest request, HttpServletResponse response)
+    {
+        String id = getId(request);
+        if (id != null) {
+            remove(id);
+            request.removeAttribute(ID_ATTRIBUTE);
+            setSessionCookie(request, response, null, 0);
+        }
+    }
+
+    /**
+     * @return the id of the social session of the request, set by this request or sent in the cookie,
+     *         <code>null</code> if it has none
+     */
+    private String getId(HttpServletRequest request)
+    {
+        String id = (String) request.getAttribute(ID_ATTRIBUTE);
+        if (id == null && request.getCookies() != null) {
+            for (Cookie cookie : request.getCookies()) {
+                if (SESSION_COOKIE.equals(cookie.getName())) {
+                    id = cookie.getValue();
+                    break;
+                }
+            }
+        }
+        return StringUtils.isBlank(id) || id.length() > MAX_ID_LENGTH ? null : id;
+    }
+
+    /**
+     * Reads a session from the cache, then from the pending writes, then from the database.
+     *
+     * @return the session, {@link #REMOVED} if it doesn't exist
+     */
+    private Entry getEntry(String id)
+    {
+        start();
+        Entry entry = this.sessions.get(id);
+        if (entry == null) {
+            entry = this.pending.get(id);
+            if (entry == null) {
+                entry = load(id);
+            }
+            // A session not found is not cached, it may have been created by another node which hasn't written it yet
+            if (entry != REMOVED) {
+                this.sessions.set(id, entry);
+            }
+        }
+        return entry;
+    }
+
+    private void save(String id, SocialAuthSession session)
+    {
+        start();
+        // Encrypted now, the background thread cannot read the encryption key
+        String data = encode(session);
+        if (data == null) {
+            // Keep the previous row rather than removing the session
+            return;
+        }
+        long expires = System.currentTimeMillis() + this.configuration.getSessionTimeToLive() * 1000L;
+        Entry entry = new Entry(session, data, expires);
+        this.sessions.set(id, entry);
+        this.pending.put(id, entry);
+    }
+
+    private void remove(String id)
+    {
+        start();
+        this.sessions.set(id, REMOVED);
+        this.pending.put(id, REMOVED);
+    }
+
+    private void setSessionCookie(HttpServletRequest request, HttpServletResponse response, String id, int maxAge)
+    {
+        if (response != null) {
+            HttpOnlyCookies.addCookie(request, response, SESSION_COOKIE, id, maxAge);
+        }
+    }
+
+    /**
+     * Prepares the database and starts the background thread, on first use, so that nothing is done when this store
+     * is not the configured one.
+     */
+    private void start()
+    {
+        if (this.scheduler != null) {
+            return;
+        }
+        synchronized (this) {
+            if (this.scheduler != null) {
+                return;
+            }
+            this.url = this.configuration.getSessionDatabaseURL();
+            String driver = this.configuration.getSessionDatabaseDriver();
+            if (StringUtils.isBlank(this.url)) {
+                File directory = new File(this.environment.getPermanentDirectory(), "sociallogin");
+                this.url = "jdbc:hsqldb:file:" + new File(directory, "sessions").getAbsolutePath();
+                driver = StringUtils.defaultIfBlank(driver, HSQLDB_DRIVER);
+            }
+            loadDriver(driver);
+            createTable();
+
+            ScheduledExecutorService newScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Social login session store");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            newScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            newScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sweep();
+                }
+            }, 0, SWEEP_INTERVAL, TimeUnit.SECONDS);
+            this.scheduler = newScheduler;
+        }
+    }
+
+    /**
+     * Registers the JDBC driver with the {@code DriverManager}, which doesn't find the drivers of a web application by
+     * itself on every container.
+     */
+    private void loadDriver(String driver)
+    {
+        if (StringUtils.isBlank(driver)) {
+            return;
+        }
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            this.logger.error("The JDBC driver [{}] of the social session database is not available", driver);
+        }
+    }
+
+    private void createTable()
+    {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeQuery(CHECK).close();
+            } catch (SQLException e) {
+                // Not created yet
+                statement.execute(CREATE_TABLE);
+                statement.execute(CREATE_INDEX);
+            }
+        } catch (SQLException e) {
+            this.logger.error("Failed to prepare the database of the social sessions, they will be kept by this node"
+                + " only: {}", e.getMessage());
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * @return the session stored in the database, {@link #REMOVED} if there is none or if it has expired
+     */
+    private Entry load(String id)
+    {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            PreparedStatement select = connection.prepareStatement(SELECT);
+            select.setString(1, id);
+            select.setLong(2, System.currentTimeMillis());
+            ResultSet result = select.executeQuery();
+            if (!result.next()) {
+                return REMOVED;
+            }
+            String data = result.getString(1);
+            return new Entry(decode(data), data, result.getLong(2));
+        } catch (Exception e) {
+            // The id is not logged, it is as secret as the session
+            this.logger.warn("Failed to read a social session: {}", e.getMessage());
+            return REMOVED;
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Writes the pending changes in a single transaction. The changes which fail are kept for the next batch, unless
+     * the session has changed again in the meantime.
+     */
+    private void flush()
+    {
+        Map<String, Entry> batch = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> change : this.pending.entrySet()) {
+            // A session changed again in the meantime stays for the next batch
+            if (this.pending.remove(change.getKey(), change.getValue())) {
+                batch.put(change.getKey(), change.getValue());
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            write(batch);
+        } catch (Exception e) {
+            this.logger.warn("Failed to write [{}] social sessions, trying again with the next batch: {}",
+                batch.size(), e.getMessage());
+            for (Map.Entry<String, Entry> change : batch.entrySet()) {
+                this.pending.putIfAbsent(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private void write(Map<String, Entry> batch) throws SQLException
+    {
+        Connection connection = getConnection();
+        try {
+            connection.setAutoCommit(false);
+            PreparedStatement delete = connection.prepareStatement(DELETE);
+            PreparedStatement insert = connection.prepareStatement(INSERT);
+            boolean inserts = false;
+            for (Map.Entry<String, Entry> change : batch.entrySet()) {
+                delete.setString(1, change.getKey());
+                delete.addBatch();
+                String data = change.getValue().data;
+                if (data != null) {
+                    insert.setString(1, change.getKey());
+                    insert.setLong(2, change.getValue().expires);
+                    insert.setString(3, data);
+                    insert.addBatch();
+                    inserts = true;
+                }
+            }
+            try {
+                delete.executeBatch();
+                if (inserts) {
+                    insert.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * @param session a session
+     * @return the session serialized and encrypted, <code>null</code> if it cannot be stored, in which case its
+     *         changes are lost once the other nodes or this one read it again from the database
+     */
+    String encode(SocialAuthSession session)
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(session);
+            out.close();
+            if (bytes.size() > MAX_SESSION_SIZE) {
+                this.logger.error("A social session of [{}] bytes is larger than the [{}] bytes the database accepts:"
+                    + " its previous version stays stored, and its changes will be lost within a minute",
+                    bytes.size(), MAX_SESSION_SIZE);
+                return null;
+            }
+            return this.cipher.encrypt(Base64.encodeBase64String(bytes.toByteArray()));
+        } catch (Exception e) {
+            this.logger.error("Failed to store a social session, its previous version stays stored: {}",
+                e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param data a session encoded by {@link #encode(SocialAuthSession)}
+     * @return the session
+     * @throws IOException if the data is not a session
+     * @throws GeneralSecurityException if the data cannot be decrypted, or has been tampered with
+     */
+    SocialAuthSession decode(String data) throws IOException, GeneralSecurityException
+    {
+        ObjectInputStream in =
+            new SessionInputStream(new ByteArrayInputStream(Base64.decodeBase64(this.cipher.decrypt(data))));
+        try {
+            return (SocialAuthSession) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void sweep()
+    {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            PreparedStatement sweep = connection.prepareStatement(SWEEP);
+            sweep.setLong(1, System.currentTimeMillis());
+            int removed = sweep.executeUpdate();
+            this.logger.debug("Removed [{}] expired social sessions", removed);
+        } catch (Exception e) {
+            this.logger.warn("Failed to remove the expired social sessions: {}", e.getMessage());
+        } finally {
+            close(connection);
+        }
+    }
+
+    private Connection getConnection() throws SQLException
+    {
+        return DriverManager.getConnection(this.url, this.configuration.getSessionDatabaseUser(),
+            this.configuration.getSessionDatabasePassword());
+    }
+
+    private void close(Connection connection)
+    {
+        if (connection != null) {
+            try {
+                // Closes the statements and result sets too
+                connection.close();
+            } catch (SQLException e) {
+                this.logger.debug("Failed to close the connection to the social session database", e);
+            }
+        }
+    }
+
+    /**
+     * A session with its expiration date in the database.
+     */
+    private static final class Entry
+    {
+        /** The session, <code>null</code> if it is removed. */
+        private final SocialAuthSession session;
+
+        /** The session encrypted, as stored in the database, <code>null</code> if it is removed. */
+        private final String data;
+
+        /** The expiration date, in milliseconds. */
+        private final long expires;
+
+        private Entry(SocialAuthSession session, String data, long expires)
+        {
+            this.session = session;
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Reads a serialized {@link SocialAuthSession} and nothing else: it writes its fields by hand, so its own class is
+     * the only one its serialized form names, and any other class is refused before it is loaded.
+     */
+    private static final class SessionInputStream extends ObjectInputStream
+    {
+        private SessionInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class< ? > resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException
+        {
+            if (!SocialAuthSession.class.getName().equals(description.getName())) {
+                throw new InvalidClassException(description.getName(), "Not allowed in a social session");
+            }
+            return SocialAuthSession.class;
+        }
+
+        @Override
+        protected Class< ? > resolveProxyClass(String[] interfaces) throws IOException
+        {
+            throw new InvalidClassException("Proxy classes are not allowed in a social session");
+        }
+    }
+}
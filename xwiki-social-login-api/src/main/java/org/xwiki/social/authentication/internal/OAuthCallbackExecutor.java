@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.concurrent.Callable;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.social.authentication.SocialAuthException;
+
+/**
+ * Runs the blocking calls to the OAuth providers (token exchange, profile fetch) outside of the servlet threads, so
+ * that a slow provider can't use up the threads of the container. The backend is chosen with
+ * {@link org.xwiki.social.authentication.SocialAuthConfiguration#getCallbackExecutor()}.
+ *
+ * @version $Id$
+ */
+@Role
+public interface OAuthCallbackExecutor
+{
+    /**
+     * Runs a task and waits for its result, at most for the timeout configured for the provider.
+     *
+     * @param <T> the type of the result of the task
+     * @param provider the provider the task calls
+     * @param task the task to run
+     * @return the result of the task
+     * @throws SocialAuthException if the task fails, times out, or can't be accepted because too many are pending
+     */
+    <T> T execute(String provider, Callable<T> task) throws SocialAuthException;
+
+    /**
+     * @return the number of tasks waiting to be run
+     */
+    int getQueueSize();
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.brickred.socialauth.SocialAuthConfig;
+
+/**
+ * A snapshot of the OAuth consumer configuration, as loaded from <tt>oauth_consumer.properties</tt>. A snapshot is
+ * never modified once published: a changed configuration is a new snapshot. The settings derived from the properties
+ * are computed when the snapshot is built.
+ *
+ * @version $Id$
+ */
+public final class OAuthConsumerConfiguration
+{
+    private static final String CUSTOM_PERMISSION = "custom_permission";
+
+    private final Properties properties = new Properties();
+
+    private final SocialAuthConfig socialAuthConfig;
+
+    /** The custom permissions of the providers which have some, by provider id. */
+    private final Map<String, String> customPermissions;
+
+    /**
+     * @param properties the OAuth consumer properties, copied
+     * @throws Exception if the properties are not a valid configuration
+     */
+    public OAuthConsumerConfiguration(Properties properties) throws Exception
+    {
+        this.properties.putAll(properties);
+        // Not the shared default configuration, so that loading a new snapshot doesn't change the current one
+        this.socialAuthConfig = new SocialAuthConfig();
+        this.socialAuthConfig.load(this.properties);
+        this.customPermissions = Collections.unmodifiableMap(loadCustomPermissions());
+    }
+
+    /**
+     * @return the configuration to give to the OAuth managers, which must not modify it
+     */
+    public SocialAuthConfig getSocialAuthConfig()
+    {
+        return this.socialAuthConfig;
+    }
+
+    /**
+     * @param provider a provider id
+     * @return the custom permissions configured for the provider, <code>null</code> if there are none
+     */
+    public String getCustomPermissions(String provider)
+    {
+        return this.customPermissions.get(provider);
+    }
+
+    /**
+     * Finds the custom permissions of the providers, configured with keys such as
+     * <tt>graph.facebook.com.custom_permissions</tt>, and sets them on the configurations of the providers, before
+     * the snapshot is published and used by concurrent requests.
+     *
+     * @return the custom permissions, by provider id
+     */
+    private Map<String, String> loadCustomPermissions()
+    {
+        Map<String, String> permissions = new HashMap<String, String>();
+        for (String key : this.properties.stringPropertyNames()) {
+            String value = this.properties.getProperty(key);
+            if (!key.contains(CUSTOM_PERMISSION) || StringUtils.isBlank(value)) {
+                continue;
+            }
+            // The provider id is one of the parts of the key
+            for (String part : StringUtils.split(key, '.')) {
+                if (!permissions.containsKey(part)) {
+                    try {
+                        this.socialAuthConfig.getProviderConfig(part).setCustomPermissions(value);
+                        permissions.put(part, value);
+                    } catch (Exception e) {
+                        // Not a provider id
+                    }
+                }
+            }
+        }
+        return permissions;
+    }
+}
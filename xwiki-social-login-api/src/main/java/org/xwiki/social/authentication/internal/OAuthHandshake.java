@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.brickred.socialauth.SocialAuthManager;
+
+/**
+ * An OAuth handshake in progress, between the redirection to the provider and the callback: what the callback needs
+ * to verify the response of the provider.
+ *
+ * @version $Id$
+ */
+public final class OAuthHandshake
+{
+    private final String provider;
+
+    private final String returnUrl;
+
+    private final long creationTime;
+
+    private final SocialAuthManager authManager;
+
+    /**
+     * @param provider the provider the user is redirected to
+     * @param returnUrl the URL the provider redirects back to
+     * @param authManager the OAuth manager which built the authentication URL, holding the state of the handshake
+     *            (state parameter, request token of OAuth 1 providers)
+     */
+    public OAuthHandshake(String provider, String returnUrl, SocialAuthManager authManager)
+    {
+        this.provider = provider;
+        this.returnUrl = returnUrl;
+        this.authManager = authManager;
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the provider the user is redirected to
+     */
+    public String getProvider()
+    {
+        return this.provider;
+    }
+
+    /**
+     * @return the URL the provider redirects back to
+     */
+    public String getReturnUrl()
+    {
+        return this.returnUrl;
+    }
+
+    /**
+     * @return the time the handshake started at, in milliseconds
+     */
+    public long getCreationTime()
+    {
+        return this.creationTime;
+    }
+
+    /**
+     * @return the OAuth manager holding the state of the handshake
+     */
+    public SocialAuthManager getAuthManager()
+    {
+        return this.authManager;
+    }
+}
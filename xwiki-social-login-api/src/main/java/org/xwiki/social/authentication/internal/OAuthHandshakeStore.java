@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps the OAuth handshakes in progress out of the HTTP sessions, for a limited time. A handshake is identified by a
+ * random nonce, given to the browser in a cookie, and can be taken once.
+ *
+ * @version $Id$
+ */
+@Role
+public interface OAuthHandshakeStore
+{
+    /**
+     * @param handshake a handshake starting
+     * @return the nonce identifying the handshake
+     */
+    String add(OAuthHandshake handshake);
+
+    /**
+     * Removes a handshake from the store and returns it.
+     *
+     * @param nonce the nonce identifying the handshake
+     * @return the handshake, <code>null</code> if there is none for this nonce, or if it has expired or been taken
+     */
+    OAuthHandshake take(String nonce);
+
+    /**
+     * @return the time a handshake is kept, in seconds
+     */
+    int getTimeToLive();
+}
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Issues and validates signed tokens carrying the principal of a social login, so that any node of a cluster can
+ * authenticate a request with a single MAC computation, without access to the HTTP session where the OAuth handshake
+ * took place.
+ * <p>
+ * A token is made of a payload <tt>v1|keyId|provider|expiry|principal</tt> and of its HMAC-SHA256, both encoded in
+ * URL safe base 64 and separated by a dot. The mode is enabled with these <tt>xwiki.cfg</tt> parameters:
+ * <ul>
+ * <li><tt>xwiki.authentication.socialLogin.token=1</tt></li>
+ * <li><tt>xwiki.authentication.socialLogin.token.keys</tt>: a comma separated list of <tt>keyId:secret</tt> pairs. The
+ * first key signs new tokens, all of them validate tokens, so that a key can be rotated by putting the new key first
+ * and removing the old one once the tokens it signed have expired.</li>
+ * <li><tt>xwiki.authentication.socialLogin.token.validity</tt>: the validity of a token, in seconds (12 hours by
+ * default).</li>
+ * </ul>
+ * 
+ * @version $Id$
+ */
+@Role
+public interface PrincipalTokenService
+{
+    /**
+     * @return <code>true</code> if the signed token mode is enabled and at least one key is configured
+     */
+    boolean isEnabled();
+
+    /**
+     * @param provider the provider the user has been authenticated with
+     * @param principal the name of the authenticated principal
+     * @return a token signed with the current key, valid for the configured validity
+     */
+    String createToken(String provider, String principal);
+
+    /**
+     * @param token the token to validate
+     * @return the principal carried by the token if it is well formed, signed by a configured key and not expired,
+     *         <code>null</code> otherwise
+     */
+    String validateToken(String token);
+
+    /**
+     * @return the validity of the tokens, in seconds
+     */
+    int getValidity();
+}
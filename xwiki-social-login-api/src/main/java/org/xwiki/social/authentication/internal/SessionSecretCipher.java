@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.security.GeneralSecurityException;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Encrypts the secrets stored in social sessions with the <tt>xwiki.authentication.encryptionKey</tt> of
+ * <tt>xwiki.cfg</tt>. Those secrets are random strings generated by the server, so unlike passwords chosen by users
+ * they don't need an expensive key derivation for each encryption: the key is derived once from the configured
+ * encryption key and every secret is encrypted with AES-GCM.
+ * 
+ * @version $Id$
+ */
+@Role
+public interface SessionSecretCipher
+{
+    /**
+     * @param secret the secret to encrypt
+     * @return the encrypted secret, in the current format
+     * @throws GeneralSecurityException if the secret cannot be encrypted
+     */
+    String encrypt(String secret) throws GeneralSecurityException;
+
+    /**
+     * Decrypts a secret encrypted by {@link #encrypt(String)}, or by the password based encryption used before.
+     * 
+     * @param encryptedSecret the encrypted secret
+     * @return the secret
+     * @throws GeneralSecurityException if the secret cannot be decrypted, or has been tampered with
+     */
+    String decrypt(String encryptedSecret) throws GeneralSecurityException;
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Reads the OAuth consumer properties of a wiki from its <tt>XWiki.SocialLoginConsumerConfiguration</tt> document.
+ * They hold the consumer secrets, so they are kept apart from <tt>XWiki.SocialLoginConfiguration</tt>, which guests
+ * can view, in a hidden document only the administrators can view or edit. The document is read server-side,
+ * without checking the rights of the current user.
+ * 
+ * @version $Id$
+ */
+@Component("socialAuthConsumerDocument")
+public class SocialAuthConsumerConfigurationSource extends SocialAuthDocumentConfigurationSource
+{
+    /**
+     * The name of the document, which also defines the XWiki Class of its object.
+     */
+    private static final String SOCIAL_LOGIN_CONSUMER_CONFIGURATION = "SocialLoginConsumerConfiguration";
+
+    @Override
+    protected String getClassName()
+    {
+        return SOCIAL_LOGIN_CONSUMER_CONFIGURATION;
+    }
+
+    @Override
+    protected String getDocumentName()
+    {
+        return SOCIAL_LOGIN_CONSUMER_CONFIGURATION;
+    }
+}
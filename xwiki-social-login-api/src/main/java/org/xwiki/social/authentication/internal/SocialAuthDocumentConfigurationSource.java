@@ -73,15 +73,31 @@ public class SocialAuthDocumentConfigurationSource implements ConfigurationSourc
 
     private static final String SOCIAL_LOGIN_CONFIGURATION_DOCUMENT = "SocialLoginConfiguration";
 
+    /**
+     * @return the name of the XWiki Class of the configuration object, in the <tt>XWiki</tt> space
+     */
+    protected String getClassName()
+    {
+        return SOCIAL_LOGIN_CONFIGURATION_CLASS;
+    }
+
+    /**
+     * @return the name of the document holding the configuration object, in the <tt>XWiki</tt> space
+     */
+    protected String getDocumentName()
+    {
+        return SOCIAL_LOGIN_CONFIGURATION_DOCUMENT;
+    }
+
     /**
      * @return the XWiki Class reference of the XWiki Object containing the configuration properties
      */
     protected DocumentReference getClassReference()
     {
         if (isGlobalConfiguration()) {
-            return new DocumentReference(getMainWikiName(), XWIKI_SPACE, SOCIAL_LOGIN_CONFIGURATION_CLASS);
+            return new DocumentReference(getMainWikiName(), XWIKI_SPACE, getClassName());
         } else {
-            return new DocumentReference(SOCIAL_LOGIN_CONFIGURATION_CLASS, new SpaceReference(XWIKI_SPACE,
+            return new DocumentReference(getClassName(), new SpaceReference(XWIKI_SPACE,
                 getCurrentWikiReference()));
         }
     }
@@ -93,9 +109,9 @@ public class SocialAuthDocumentConfigurationSource implements ConfigurationSourc
     protected DocumentReference getDocumentReference()
     {
         if (isGlobalConfiguration()) {
-            return new DocumentReference(getMainWikiName(), XWIKI_SPACE, SOCIAL_LOGIN_CONFIGURATION_DOCUMENT);
+            return new DocumentReference(getMainWikiName(), XWIKI_SPACE, getDocumentName());
         } else {
-            return new DocumentReference(SOCIAL_LOGIN_CONFIGURATION_DOCUMENT, new SpaceReference(XWIKI_SPACE,
+            return new DocumentReference(getDocumentName(), new SpaceReference(XWIKI_SPACE,
                 getCurrentWikiReference()));
         }
     }
@@ -32,6 +32,7 @@ import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.social.authentication.SocialAuthConfiguration;
 import org.xwiki.social.authentication.SocialAuthException;
+import org.xwiki.social.authentication.SocialAuthGrant;
 import org.xwiki.social.authentication.SocialAuthSession;
 import org.xwiki.social.authentication.SocialAuthenticationManager;
 
@@ -51,6 +52,9 @@ public class SocialAuthScriptService implements ScriptService
     @Inject
     private Execution execution;
 
+    @Inject
+    private SocialIdentityIndex identityIndex;
+
     public boolean ensureConnected(String provider)
     {
         if (!socialAuthManager.hasProvider(getContextUser(), provider)) {
@@ -99,6 +103,16 @@ public class SocialAuthScriptService implements ScriptService
         return this.socialAuthManager.getSession().getProfile();
     }
 
+    public Profile refreshProfile(String provider)
+    {
+        try {
+            return this.socialAuthManager.refreshProfile(provider);
+        } catch (SocialAuthException e) {
+            getContext().put("message", e.getMessage());
+            return null;
+        }
+    }
+
     public boolean registerUser()
     {
         try {
@@ -146,10 +160,36 @@ public class SocialAuthScriptService implements ScriptService
     public String getToken(String provider)
     {
         SocialAuthSession session = this.socialAuthManager.getSession();
-        if (session == null || session.getAuthProvider(provider) == null) {
+        SocialAuthGrant grant = session != null ? session.getGrant(provider) : null;
+        if (grant == null || grant.getAccessGrant() == null) {
             return null;
         }
-        return session.getAuthProvider(provider).getAccessGrant().getKey();
+        return grant.getAccessGrant().getKey();
+    }
+
+    /**
+     * @return the number of social identity lookups answered from memory since the start
+     */
+    public long getIdentityCacheHitCount()
+    {
+        return this.identityIndex.getHitCount();
+    }
+
+    /**
+     * @return the number of social identity lookups that had to query the database since the start
+     */
+    public long getIdentityCacheMissCount()
+    {
+        return this.identityIndex.getMissCount();
+    }
+
+    /**
+     * @return the number of calls to the OAuth providers waiting for a thread, a sign that the providers are slow or
+     *         that more callback threads are needed
+     */
+    public int getCallbackQueueSize()
+    {
+        return this.socialAuthManager.getCallbackQueueSize();
     }
 
     // /////////////////////////////////////////////////////////////////////////
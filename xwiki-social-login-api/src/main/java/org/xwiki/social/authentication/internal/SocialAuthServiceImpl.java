@@ -24,6 +24,7 @@ import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
 import java.security.Principal;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang3.StringUtils;
@@ -35,14 +36,15 @@ import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.social.authentication.SocialAuthConfiguration;
 import org.xwiki.social.authentication.SocialAuthConstants;
 import org.xwiki.social.authentication.SocialAuthException;
+import org.xwiki.social.authentication.SocialAuthGrant;
 import org.xwiki.social.authentication.SocialAuthSession;
 import org.xwiki.social.authentication.SocialAuthenticationManager;
-import org.xwiki.social.legacy.crypto.passwd.PasswordCryptoService;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
 import com.xpn.xwiki.web.Utils;
 /**
@@ -96,6 +98,12 @@ import com.xpn.xwiki.web.Utils;
  * without knowing the private key).
  * </p>
  * <p>
+ * For deployments with several nodes and no sticky sessions, a stateless mode can be enabled in addition (see
+ * {@link PrincipalTokenService}): once the credentials have been validated against the session, a signed token
+ * carrying the principal is stored in the {@value #TOKEN_COOKIE} cookie, and any node accepts it as long as it is
+ * valid, without looking at the session.
+ * </p>
+ * <p>
  * See {@link SocialAuthConfiguration} for configuration options.
  * </p>
  * 
@@ -107,7 +115,31 @@ public class SocialAuthServiceImpl extends XWikiAuthServiceImpl implements Socia
      * Logger used for this authenticator.
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(SocialAuthServiceImpl.class);
-    
+
+    /**
+     * Name of the cookie holding the signed principal token, in stateless mode.
+     */
+    private static final String TOKEN_COOKIE = "sl_token";
+
+    @Override
+    public XWikiUser checkAuth(XWikiContext context) throws XWikiException
+    {
+        PrincipalTokenService tokenService = Utils.getComponent(PrincipalTokenService.class);
+        if (context.getRequest() != null && tokenService.isEnabled()) {
+            if ("logout".equals(context.getAction())) {
+                setTokenCookie(null, 0, context);
+            } else {
+                Cookie cookie = context.getRequest().getCookie(TOKEN_COOKIE);
+                String principal = cookie != null ? tokenService.validateToken(cookie.getValue()) : null;
+                if (principal != null) {
+                    LOGGER.debug("Valid social login token, returning principal " + principal);
+                    return new XWikiUser(principal);
+                }
+            }
+        }
+        return super.checkAuth(context);
+    }
+
     @Override
     public Principal authenticate(String login, String password, XWikiContext context) throws XWikiException
     {
@@ -117,6 +149,8 @@ public class SocialAuthServiceImpl extends XWikiAuthServiceImpl implements Socia
 
         SocialAuthenticationManager manager = Utils.getComponent(SocialAuthenticationManager.class);
 
+        // This doesn't create a HTTP session: anonymous requests (page views, skin resources, etc.) that don't ask for
+        // a provider must not allocate one.
         SocialAuthSession session = manager.getSession();
 
         if (StringUtils.isBlank(request.getParameter(PROVIDER_PARAMETER))
@@ -212,7 +246,10 @@ public class SocialAuthServiceImpl extends XWikiAuthServiceImpl implements Socia
                 LOGGER.debug("We back from OAuth URL");
                 user = manager.connect(SocialAuthUtil.getRequestParametersMap(request));
             } else {
-                user = manager.getUser(provider, manager.getSession().getProfile().getValidatedId());
+                user = manager.getSession().getUser();
+                if (user == null) {
+                    user = manager.getUser(provider, manager.getSession().getProfile().getValidatedId());
+                }
                 LOGGER.debug("Already a profile in the session. User " + user);
             }
             
@@ -248,30 +285,82 @@ public class SocialAuthServiceImpl extends XWikiAuthServiceImpl implements Socia
         SocialAuthenticationManager manager, XWikiContext context) throws GeneralSecurityException, XWikiException
     {
         LOGGER.debug("Found a social profile in session");
-        PasswordCryptoService passwordCryptoService = Utils.getComponent(PasswordCryptoService.class);
-        String key = context.getWiki().Param("xwiki.authentication.encryptionKey");
+        ValidatedPrincipalCache principalCache = Utils.getComponent(ValidatedPrincipalCache.class);
+        String sessionId = context.getRequest().getSession().getId();
 
-        DocumentReference user =
-            manager.getUser(session.getProfile().getProviderId(), session.getProfile().getValidatedId());
-        XWikiDocument document = context.getWiki().getDocument(user, context);
+        // Credentials are presented again on every request (from the persistent login cookies): once they have been
+        // validated against the session, there's no need to lookup the user and decrypt the password again.
+        String validatedPrincipal =
+            principalCache.get(sessionId, username, password, session.getEncryptedPassword());
+        if (validatedPrincipal != null) {
+            LOGGER.debug("Credentials already validated in session, returning principal " + validatedPrincipal);
+            return new SimplePrincipal(validatedPrincipal);
+        }
 
-        if (!StringUtils.isBlank(session.getEncryptedPassword())
-            && passwordCryptoService.decryptText(session.getEncryptedPassword(), key).equals(password)
-            && username.equals(document.getName())) {
+        SessionSecretCipher sessionSecretCipher = Utils.getComponent(SessionSecretCipher.class);
 
-            LOGGER.debug("Password match, returning principal " + document.getName());
-            return new SimplePrincipal(document.getPrefixedFullName());
+        // The user is bound to the social session when connecting, sessions created before that need a lookup
+        DocumentReference user = session.getUser();
+        String principal = session.getPrincipal();
+        if (user == null) {
+            SocialAuthGrant grant = session.getGrant(session.getCurrentProvider());
+            user = grant != null ? manager.getUser(grant.getProvider(), grant.getValidatedId()) : null;
+            if (user != null) {
+                principal = manager.bindUser(session, user);
+            }
+        }
+
+        if (user != null && !StringUtils.isBlank(session.getEncryptedPassword())
+            && sessionSecretCipher.decrypt(session.getEncryptedPassword()).equals(password)
+            && username.equals(user.getName())) {
+
+            LOGGER.debug("Password match, returning principal " + principal);
+            principalCache.put(sessionId, username, password, session.getEncryptedPassword(), principal);
+            issueToken(session.getCurrentProvider(), principal, context);
+            return new SimplePrincipal(principal);
         }
         
         LOGGER.debug("Password null or password mismatch");
+        principalCache.invalidate(sessionId);
         
         if (!StringUtils.isBlank(password)) {
             LOGGER.debug("Password null");    
-            context.getRequest().getSession().removeAttribute(SOCIAL_AUTH_SESSION_ATTRIBUTE);
+            manager.removeSession();
         }
         // Leave to the XWiki authentication
         // TODO check a "trylocal" parameter simalar to LDAP auth
         return super.authenticate(username, password, context);
     }
 
+    /**
+     * In stateless mode, stores a signed token for the passed principal in the {@value #TOKEN_COOKIE} cookie, so that
+     * the following requests are authenticated on any node.
+     * 
+     * @param provider the provider the principal has been authenticated with
+     * @param principal the authenticated principal
+     * @param context the XWiki context
+     */
+    private void issueToken(String provider, String principal, XWikiContext context)
+    {
+        PrincipalTokenService tokenService = Utils.getComponent(PrincipalTokenService.class);
+        if (tokenService.isEnabled()) {
+            String token = tokenService.createToken(provider, principal);
+            if (token != null) {
+                setTokenCookie(token, tokenService.getValidity(), context);
+            }
+        }
+    }
+
+    /**
+     * @param token the token to store, <code>null</code> to remove the cookie
+     * @param maxAge the lifetime of the cookie, in seconds
+     * @param context the XWiki context
+     */
+    private void setTokenCookie(String token, int maxAge, XWikiContext context)
+    {
+        if (context.getResponse() != null) {
+            HttpOnlyCookies.addCookie(context.getRequest(), context.getResponse(), TOKEN_COOKIE, token, maxAge);
+        }
+    }
+
 }
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.social.authentication.SocialAuthSession;
+
+/**
+ * Keeps the social sessions of the users, the implementation being chosen by
+ * {@link org.xwiki.social.authentication.SocialAuthConfiguration#getSessionStore()}. The social sessions are
+ * modified in place: a store which doesn't keep the instances it returns is told about the changes with
+ * {@link #save(HttpServletRequest, SocialAuthSession)}.
+ *
+ * @version $Id$
+ */
+@Role
+public interface SocialAuthSessionStore
+{
+    /**
+     * Looks up the social session of a request. This never creates a HTTP session.
+     *
+     * @param request the current request
+     * @return the social session of the request, <code>null</code> if it has none
+     */
+    SocialAuthSession get(HttpServletRequest request);
+
+    /**
+     * Starts a new social session for a request, replacing the one it had.
+     *
+     * @param request the current request
+     * @param response the current response, to identify the new session in the browser
+     * @return the new social session
+     */
+    SocialAuthSession create(HttpServletRequest request, HttpServletResponse response);
+
+    /**
+     * @param request the current request
+     * @param response the current response, to identify the new session in the browser
+     * @return the social session of the request, a new one if it has none
+     */
+    SocialAuthSession getOrCreate(HttpServletRequest request, HttpServletResponse response);
+
+    /**
+     * Records the changes made to the social session of a request.
+     *
+     * @param request the current request
+     * @param session the social session of the request, as returned by this store
+     */
+    void save(HttpServletRequest request, SocialAuthSession session);
+
+    /**
+     * Forgets the social session of a request.
+     *
+     * @param request the current request
+     * @param response the current response, to forget the session in the browser
+     */
+    void remove(HttpServletRequest request, HttpServletResponse response);
+}
@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Resolves social identities, that is pairs of provider and validated id, to the XWiki users holding a matching
+ * <tt>XWiki.SocialLoginProfileClass</tt> object, and remembers the answers (including the absence of such a user) so
+ * that repeated logins don't hit the database. Entries are removed by {@link SocialLoginProfileListener} when
+ * documents holding social profiles change.
+ *
+ * @version $Id$
+ */
+@Role
+public interface SocialIdentityIndex
+{
+    /**
+     * Looks up the user in the wiki of the context.
+     *
+     * @param provider the provider of the identity. Examples: "facebook", "twitter", etc.
+     * @param id the validated id of the identity at this provider
+     * @return the reference of the user document with a social profile for this provider and id, <code>null</code>
+     *         if there is none
+     */
+    DocumentReference getUser(String provider, String id);
+
+    /**
+     * Forgets what is known about an identity.
+     *
+     * @param wiki the wiki the identity has been looked up in
+     * @param provider the provider of the identity
+     * @param id the validated id of the identity at this provider
+     */
+    void remove(String wiki, String provider, String id);
+
+    /**
+     * @return the number of lookups answered from memory since the start
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of lookups that had to query the database since the start
+     */
+    long getMissCount();
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpSession;
+
+import org.xwiki.bridge.event.ActionExecutingEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentDeletingEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.social.authentication.SocialAuthConstants;
+import org.xwiki.social.authentication.SocialAuthenticationManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the caches of the social login module consistent with the social profiles stored in the wiki and with the
+ * user sessions: the cached validations of the user and the identities indexed for the profiles of a document are
+ * dropped when a document holding a <tt>XWiki.SocialLoginProfileClass</tt> object is created, changes or is deleted,
+ * and cached validations and the social session are dropped when a user logs out. The saves of documents holding
+ * social profiles are also reported to the {@link SocialLoginProfileMapping}, which holds them while it is switched
+ * on.
+ *
+ * @version $Id$
+ */
+@Component("socialLoginProfileListener")
+public class SocialLoginProfileListener implements EventListener, SocialAuthConstants
+{
+    private static final String NAME = "socialLoginProfileListener";
+
+    private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentCreatingEvent(),
+        new DocumentUpdatingEvent(), new DocumentDeletingEvent(), new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent(), new ActionExecutingEvent("logout"));
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ValidatedPrincipalCache principalCache;
+
+    @Inject
+    private SocialIdentityIndex identityIndex;
+
+    @Inject
+    private SocialAuthenticationManager socialAuthManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private SocialLoginProfileMapping mapping;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ActionExecutingEvent) {
+            XWikiContext context = getContext();
+            if (context != null && context.getRequest() != null) {
+                HttpSession session = context.getRequest().getSession(false);
+                if (session != null) {
+                    this.principalCache.invalidate(session.getId());
+                }
+                // The social session may outlive the HTTP session, depending on the session store
+                this.socialAuthManager.removeSession();
+            }
+        } else if (event instanceof DocumentCreatingEvent || event instanceof DocumentUpdatingEvent
+            || event instanceof DocumentDeletingEvent) {
+            XWikiDocument document = (XWikiDocument) source;
+            if (!getSocialProfiles(document).isEmpty()
+                || !getSocialProfiles(document.getOriginalDocument()).isEmpty()) {
+                this.mapping.startProfileSave(document.getDocumentReference().getWikiReference().getName());
+            }
+        } else {
+            this.mapping.endProfileSave();
+            XWikiDocument document = (XWikiDocument) source;
+            // Both the new and the previous profiles are dropped, to cover profiles added, modified and removed
+            boolean hasProfile = removeSocialProfiles(document);
+            hasProfile |= removeSocialProfiles(document.getOriginalDocument());
+            if (hasProfile) {
+                // Social profiles live on the user document, whose name is the principal of the user
+                this.principalCache.invalidatePrincipal(this.serializer.serialize(document.getDocumentReference()));
+            }
+        }
+    }
+
+    /**
+     * Removes the identities of the social profiles of the passed document from the identity index.
+     *
+     * @param document the document to look for social profiles in, can be <code>null</code>
+     * @return <code>true</code> if the document has at least one social profile
+     */
+    private boolean removeSocialProfiles(XWikiDocument document)
+    {
+        List<BaseObject> profiles = getSocialProfiles(document);
+        for (BaseObject profile : profiles) {
+            this.identityIndex.remove(document.getDocumentReference().getWikiReference().getName(),
+                profile.getStringValue("provider"), profile.getStringValue("validatedId"));
+        }
+        return !profiles.isEmpty();
+    }
+
+    /**
+     * @param document the document to look for social profiles in, can be <code>null</code>
+     * @return the social profiles of the document
+     */
+    private List<BaseObject> getSocialProfiles(XWikiDocument document)
+    {
+        if (document == null) {
+            return Collections.emptyList();
+        }
+        DocumentReference classReference =
+            new DocumentReference(document.getDocumentReference().getWikiReference().getName(),
+                SOCIAL_LOGIN_PROFILE_CLASS.getLastSpaceReference().getName(), SOCIAL_LOGIN_PROFILE_CLASS.getName());
+        List<BaseObject> profiles = new ArrayList<BaseObject>();
+        List<BaseObject> objects = document.getXObjects(classReference);
+        if (objects != null) {
+            for (BaseObject profile : objects) {
+                if (profile != null) {
+                    profiles.add(profile);
+                }
+            }
+        }
+        return profiles;
+    }
+
+    private XWikiContext getContext()
+    {
+        ExecutionContext executionContext = this.execution.getContext();
+        return executionContext != null ? (XWikiContext) executionContext.getProperty("xwikicontext") : null;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Optional custom Hibernate mapping of <tt>XWiki.SocialLoginProfileClass</tt>, storing the provider and validated id
+ * of the social profiles in a dedicated table with a unique index on both columns, so that looking up a user by
+ * social identity is a single indexed query instead of a join over the generic property tables. The mapping is
+ * enabled by setting <tt>xwiki.authentication.socialLogin.customMapping=1</tt> in <tt>xwiki.cfg</tt>, along with
+ * <tt>xwiki.store.hibernate.custommapping.dynamic=1</tt>.
+ *
+ * @version $Id$
+ */
+@Role
+public interface SocialLoginProfileMapping
+{
+    /**
+     * The Hibernate entity name of the mapped class, to use in HQL queries when the mapping is active.
+     */
+    String ENTITY_NAME = "XWiki.SocialLoginProfileClass";
+
+    /**
+     * Tells if the custom mapping is active in the wiki of the context. The first time this is asked for a wiki where
+     * the mapping is enabled, the migration of the wiki is started in the background: the table is created, the
+     * existing social profiles are copied to it, and only then the mapping is applied to the class. The generic
+     * storage is used until the migration has completed.
+     *
+     * @return <code>true</code> if the social profiles of the wiki of the context are stored in the mapped table
+     */
+    boolean isActive();
+
+    /**
+     * Called before a document holding social profiles is saved or deleted. Waits while the mapping of the wiki is
+     * being switched on, so that no profile is written to the generic tables once the class says it is mapped.
+     *
+     * @param wiki the wiki of the document
+     */
+    void startProfileSave(String wiki);
+
+    /**
+     * Called once a document holding social profiles has been saved or deleted by the current thread.
+     */
+    void endProfileSave();
+}
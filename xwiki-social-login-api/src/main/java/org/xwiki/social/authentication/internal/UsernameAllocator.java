@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Chooses the names of the user pages created for social profiles. Each name is handed out once, even to concurrent
+ * registrations, without probing the existence of a page for each possible suffix.
+ *
+ * @version $Id$
+ */
+@Role
+public interface UsernameAllocator
+{
+    /**
+     * Reserves a user name in the current wiki. The name is the passed name cleaned up to be a valid page name, with
+     * a <tt>_N</tt> suffix if it is already taken. Unlike {@link com.xpn.xwiki.XWiki#getUniquePageName}, the gaps left
+     * by deleted pages are not filled: the suffix is one more than the highest suffix in use, or given before.
+     *
+     * @param name the wanted name, not cleaned up
+     * @return a name of page in the <tt>XWiki</tt> space which doesn't exist and hasn't been given before
+     */
+    String allocate(String name);
+
+    /**
+     * Releases a name handed out by {@link #allocate(String)}, once its user page has been saved or failed to be.
+     * Until then, the name is not handed out again, even if its counter has been evicted and seeded again from the
+     * storage, which doesn't know the page yet.
+     *
+     * @param wiki the wiki the name was allocated in
+     * @param username the allocated name
+     */
+    void release(String wiki, String username);
+}
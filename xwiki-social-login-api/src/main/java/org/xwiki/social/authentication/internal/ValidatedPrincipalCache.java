@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Remembers, per HTTP session, the principal that was last successfully validated by {@link SocialAuthServiceImpl}
+ * for a given set of credentials, so that following requests presenting the same credentials don't have to go through
+ * the user lookup and the decryption of the session password again.
+ *
+ * @version $Id$
+ */
+@Role
+public interface ValidatedPrincipalCache
+{
+    /**
+     * @param sessionId the id of the HTTP session the credentials are presented in
+     * @param username the presented username
+     * @param password the presented password
+     * @param encryptedPassword the encrypted password currently held in the social auth session, an entry validated
+     *            against another encrypted password is not considered
+     * @return the name of the principal validated previously for those credentials, <code>null</code> if there is none
+     */
+    String get(String sessionId, String username, String password, String encryptedPassword);
+
+    /**
+     * @param sessionId the id of the HTTP session the credentials have been presented in
+     * @param username the validated username
+     * @param password the validated password
+     * @param encryptedPassword the encrypted password the credentials have been validated against
+     * @param principal the name of the principal that has been validated
+     */
+    void put(String sessionId, String username, String password, String encryptedPassword, String principal);
+
+    /**
+     * Forgets the principal validated in the passed session, if any.
+     *
+     * @param sessionId the id of the HTTP session to forget
+     */
+    void invalidate(String sessionId);
+
+    /**
+     * Forgets the validations of a principal in all sessions, after a change of its user document.
+     *
+     * @param principal the name of the principal to forget
+     */
+    void invalidatePrincipal(String principal);
+}
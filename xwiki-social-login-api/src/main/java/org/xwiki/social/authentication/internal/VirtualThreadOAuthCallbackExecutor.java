@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * {@link OAuthCallbackExecutor} running each task in its own virtual thread, on JVMs supporting them. At most the
+ * configured number of threads call the providers at once, the other tasks wait for their turn in their own thread, up
+ * to the configured queue size. A task counts until its thread is done with it, even after it has timed out. On older
+ * JVMs, a pool of platform threads is used instead, with the same bounds.
+ *
+ * @version $Id$
+ */
+@Component("virtual")
+public class VirtualThreadOAuthCallbackExecutor extends AbstractOAuthCallbackExecutor implements Initializable,
+    Disposable
+{
+    @Inject
+    private Logger logger;
+
+    private ExecutorService executor;
+
+    /** Bounds the tasks accepted, running or waiting to run. */
+    private Semaphore permits;
+
+    /** Bounds the tasks running at once. */
+    private Semaphore running;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            // Looked up by reflection to keep running on JVMs without virtual threads
+            this.executor =
+                (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            this.logger.info("Virtual threads are not supported by this JVM, using platform threads for OAuth calls");
+            this.executor = Executors.newCachedThreadPool(newThreadFactory("OAuth callback"));
+        }
+        int maxRunning = Math.max(1, this.configuration.getCallbackThreads());
+        this.permits = new Semaphore(maxRunning + Math.max(0, this.configuration.getCallbackQueueSize()));
+        this.running = new Semaphore(maxRunning, true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    protected <T> Future<T> submit(final Callable<T> task)
+    {
+        if (!this.permits.tryAcquire()) {
+            throw new RejectedExecutionException();
+        }
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                // Interrupted if the task times out while waiting for its turn
+                running.acquire();
+                try {
+                    return task.call();
+                } finally {
+                    running.release();
+                }
+            }
+        })
+        {
+            @Override
+            public void run()
+            {
+                // Not released when the task is cancelled on timeout: a thread blocked on IO keeps running until the
+                // call really returns, and still counts until then
+                try {
+                    super.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            this.executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            this.permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public int getQueueSize()
+    {
+        // An estimate, like the size of the queue of a thread pool
+        return this.running.getQueueLength();
+    }
+}
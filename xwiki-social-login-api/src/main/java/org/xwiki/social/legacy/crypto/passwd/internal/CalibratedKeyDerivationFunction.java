@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.legacy.crypto.passwd.internal;
+
+import java.util.Properties;
+
+import org.xwiki.social.legacy.crypto.passwd.KeyDerivationFunction;
+
+/**
+ * A key derivation function whose cost parameters, once determined by the timing trial run when it is initialized,
+ * can be reused with a new salt. This allows the trial to be run once and its result to be reused for many
+ * derivations instead of being run again before each of them.
+ *
+ * @version $Id$
+ */
+public interface CalibratedKeyDerivationFunction extends KeyDerivationFunction
+{
+    /**
+     * Replace the salt of this function by a new random salt of the same length, keeping every other parameter.
+     * The function must have been initialized before.
+     */
+    void renewSalt();
+
+    /**
+     * @return the cost parameters chosen when this function was initialized (such as the number of iterations), as a
+     *         {@link Properties} suitable for logging or display.
+     */
+    Properties getCostParameters();
+}
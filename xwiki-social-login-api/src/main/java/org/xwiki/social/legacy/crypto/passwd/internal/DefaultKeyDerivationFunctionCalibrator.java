@@ -0,0 +1,244 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.legacy.crypto.passwd.internal;
+
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.social.legacy.crypto.internal.SerializationUtils;
+import org.xwiki.social.legacy.crypto.passwd.KeyDerivationFunction;
+
+/**
+ * Default implementation of {@link KeyDerivationFunctionCalibrator}.
+ * A calibrated function is kept serialized for each function class and parameters, each request for a function
+ * deserializes a copy of it and gives it a new salt. All calibrations are run again every hour in a background thread
+ * so that the cost follows the load and the hardware of the server.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultKeyDerivationFunctionCalibrator implements KeyDerivationFunctionCalibrator, Initializable,
+    Disposable
+{
+    /** Number of minutes between two calibrations of the same function. */
+    private static final long RECALIBRATION_INTERVAL = 60;
+
+    /** The logger to log. */
+    @Inject
+    private Logger logger;
+
+    /** The calibrated functions, stored serialized, by function class and parameters. */
+    private final ConcurrentMap<String, Calibration> calibrations = new ConcurrentHashMap<String, Calibration>();
+
+    /** Runs the periodic calibrations. */
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Key derivation function calibration");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recalibrate();
+            }
+        }, RECALIBRATION_INTERVAL, RECALIBRATION_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.scheduler.shutdownNow();
+    }
+
+    @Override
+    public KeyDerivationFunction getFunction(Class<? extends KeyDerivationFunction> functionClass,
+        Properties parameters) throws GeneralSecurityException
+    {
+        if (!CalibratedKeyDerivationFunction.class.isAssignableFrom(functionClass)) {
+            // No way to reuse the cost of a previous trial, this function is on its own.
+            return this.newFunction(functionClass, parameters);
+        }
+
+        final String key = this.getKey(functionClass, parameters);
+        Calibration calibration = this.calibrations.get(key);
+        if (calibration == null) {
+            calibration = new Calibration(functionClass, parameters);
+            calibration.run();
+            final Calibration existing = this.calibrations.putIfAbsent(key, calibration);
+            if (existing != null) {
+                calibration = existing;
+            }
+        }
+
+        try {
+            final CalibratedKeyDerivationFunction function =
+                (CalibratedKeyDerivationFunction) SerializationUtils.deserialize(calibration.getSerializedFunction());
+            function.renewSalt();
+            return function;
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Failed to copy the calibrated key derivation function", e);
+        }
+    }
+
+    @Override
+    public Properties getCostParameters(Class<? extends KeyDerivationFunction> functionClass, Properties parameters)
+    {
+        final Calibration calibration = this.calibrations.get(this.getKey(functionClass, parameters));
+        return calibration != null ? calibration.getCostParameters() : null;
+    }
+
+    /** Run all the known calibrations again, keeping the previous result of those which fail. */
+    private void recalibrate()
+    {
+        for (Calibration calibration : this.calibrations.values()) {
+            try {
+                calibration.run();
+            } catch (Exception e) {
+                this.logger.warn("Failed to calibrate key derivation function [{}]: {}", calibration.functionClass,
+                    e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param functionClass the class of the function to create.
+     * @param parameters the parameters to initialize the function with.
+     * @return a new function, initialized (thus with its timing trial run).
+     * @throws GeneralSecurityException if the function cannot be created.
+     */
+    private KeyDerivationFunction newFunction(Class<? extends KeyDerivationFunction> functionClass,
+        Properties parameters) throws GeneralSecurityException
+    {
+        try {
+            final KeyDerivationFunction function = functionClass.newInstance();
+            function.init(parameters);
+            return function;
+        } catch (InstantiationException e) {
+            throw new GeneralSecurityException("Failed to create key derivation function", e);
+        } catch (IllegalAccessException e) {
+            throw new GeneralSecurityException("Failed to create key derivation function", e);
+        }
+    }
+
+    /**
+     * @param functionClass a key derivation function class.
+     * @param parameters the parameters of the function, including the defaults of the {@link Properties}.
+     * @return a key identifying the function class and parameters, independent of the order of the parameters.
+     */
+    private String getKey(Class<? extends KeyDerivationFunction> functionClass, Properties parameters)
+    {
+        final StringBuilder key = new StringBuilder(functionClass.getName());
+        for (String name : new TreeSet<String>(parameters.stringPropertyNames())) {
+            key.append('\n').append(name).append('=').append(parameters.getProperty(name));
+        }
+        return key.toString();
+    }
+
+    /**
+     * The last calibration of a function class with given parameters.
+     */
+    private final class Calibration
+    {
+        /** The class of the calibrated function. */
+        private final Class<? extends KeyDerivationFunction> functionClass;
+
+        /** The parameters of the calibrated function, owned by this calibration. */
+        private final Properties parameters = new Properties();
+
+        /** The calibrated function, serialized so that every user gets its own copy. */
+        private volatile byte[] serializedFunction;
+
+        /** The cost parameters chosen by the last calibration. */
+        private volatile Properties costParameters;
+
+        /**
+         * @param functionClass the class of the function to calibrate.
+         * @param parameters the parameters to calibrate the function with, copied.
+         */
+        Calibration(Class<? extends KeyDerivationFunction> functionClass, Properties parameters)
+        {
+            this.functionClass = functionClass;
+            for (String name : parameters.stringPropertyNames()) {
+                this.parameters.setProperty(name, parameters.getProperty(name));
+            }
+        }
+
+        /**
+         * Run the timing trial of the function and publish its result.
+         *
+         * @throws GeneralSecurityException if the function cannot be created or serialized.
+         */
+        void run() throws GeneralSecurityException
+        {
+            final long start = System.currentTimeMillis();
+            final CalibratedKeyDerivationFunction function =
+                (CalibratedKeyDerivationFunction) newFunction(this.functionClass, this.parameters);
+            try {
+                this.serializedFunction = function.serialize();
+            } catch (Exception e) {
+                throw new GeneralSecurityException("Failed to serialize the calibrated key derivation function", e);
+            }
+            this.costParameters = function.getCostParameters();
+            logger.debug("Calibrated key derivation function [{}] in {}ms: {}", new Object[] {
+                this.functionClass.getName(), System.currentTimeMillis() - start, this.costParameters});
+        }
+
+        /** @return the calibrated function, serialized. */
+        byte[] getSerializedFunction()
+        {
+            return this.serializedFunction;
+        }
+
+        /** @return the cost parameters chosen by the last calibration. */
+        Properties getCostParameters()
+        {
+            return this.costParameters;
+        }
+    }
+}
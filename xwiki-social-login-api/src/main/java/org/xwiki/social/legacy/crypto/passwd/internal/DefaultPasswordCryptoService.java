@@ -26,7 +26,10 @@ import java.security.GeneralSecurityException;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.social.legacy.crypto.internal.Convert;
 import org.xwiki.social.legacy.crypto.internal.SerializationUtils;
 import org.xwiki.social.legacy.crypto.passwd.KeyDerivationFunction;
@@ -53,12 +56,18 @@ import org.xwiki.social.legacy.crypto.passwd.PasswordVerificationFunction;
  * Users can also protect a password or other secret information so that it can be verified but not
  * recovered. The output is a string of base-64 text without any header or footer as with encrypt.
  *
+ * This service is reentrant: every call works on its own key derivation function and ciphertext instances, and
+ * shares nothing but the read-only configuration, so concurrent calls don't wait on each other.
+ *
+ * The key derivation function used for encryption is calibrated when this service is initialized and then
+ * periodically by {@link KeyDerivationFunctionCalibrator}, so encrypting does not run the timing trial again.
+ *
  * @version $Id: 3befaf6a0d4295d0f0988d92c275a9cea4ccb5b4 $
  * @since 2.5M1
  */
 @Component
 @Singleton
-public class DefaultPasswordCryptoService implements PasswordCryptoService
+public class DefaultPasswordCryptoService implements PasswordCryptoService, Initializable
 {
     /** Text which indicates the beginning of password based ciphertext. */
     private final String ciphertextHeader = "-----BEGIN PASSWORD CIPHERTEXT-----\n";
@@ -70,8 +79,27 @@ public class DefaultPasswordCryptoService implements PasswordCryptoService
     @Inject
     private PasswordCryptoServiceConfiguration config;
 
+    /** Provides the key derivation functions for encryption, already calibrated. */
+    @Inject
+    private KeyDerivationFunctionCalibrator calibrator;
+
+    /** The logger to log. */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        // Run the calibration now rather than in the first request which encrypts something.
+        try {
+            this.getEncryptionKeyFunction(this.config.getCipherClass().newInstance());
+        } catch (Exception e) {
+            this.logger.warn("Failed to calibrate the key derivation function for encryption: {}", e.getMessage());
+        }
+    }
+
     @Override
-    public synchronized String encryptText(final String plaintext, final String password)
+    public String encryptText(final String plaintext, final String password)
         throws GeneralSecurityException
     {
         byte[] message = Convert.stringToBytes(plaintext);
@@ -81,7 +109,7 @@ public class DefaultPasswordCryptoService implements PasswordCryptoService
     }
 
     @Override
-    public synchronized String decryptText(final String base64Ciphertext, final String password)
+    public String decryptText(final String base64Ciphertext, final String password)
         throws GeneralSecurityException
     {
         byte[] serial = Convert.fromBase64String(base64Ciphertext, this.ciphertextHeader, this.ciphertextFooter);
@@ -96,18 +124,8 @@ public class DefaultPasswordCryptoService implements PasswordCryptoService
     public byte[] encryptBytes(byte[] message, String password) throws GeneralSecurityException
     {
         try {
-            final KeyDerivationFunction keyFunction = 
-                this.config.getKeyDerivationFunctionClassForEncryption().newInstance();
-            final Properties keyFunctionProps =
-                this.config.getKeyDerivationFunctionPropertiesForEncryption();
-
-            // need to set derivedKeyLength property based on which ciphertext is used.
             final PasswordCiphertext ciphertext = this.config.getCipherClass().newInstance();
-            keyFunctionProps.setProperty("derivedKeyLength",
-                                         Integer.valueOf(ciphertext.getRequiredKeySize()).toString());
-
-            keyFunction.init(keyFunctionProps);
-            ciphertext.init(message, password, keyFunction);
+            ciphertext.init(message, password, this.getEncryptionKeyFunction(ciphertext));
 
             return ciphertext.serialize();
         } catch (IOException e) {
@@ -117,6 +135,24 @@ public class DefaultPasswordCryptoService implements PasswordCryptoService
         }
     }
 
+    /**
+     * @param ciphertext the ciphertext which the key will be used for.
+     * @return a key derivation function with a fresh salt, producing keys of the size required by the ciphertext.
+     * @throws GeneralSecurityException if the function cannot be created.
+     */
+    private KeyDerivationFunction getEncryptionKeyFunction(final PasswordCiphertext ciphertext)
+        throws GeneralSecurityException
+    {
+        final Properties keyFunctionProps = this.config.getKeyDerivationFunctionPropertiesForEncryption();
+
+        // need to set derivedKeyLength property based on which ciphertext is used.
+        keyFunctionProps.setProperty("derivedKeyLength",
+                                     Integer.valueOf(ciphertext.getRequiredKeySize()).toString());
+
+        return this.calibrator.getFunction(this.config.getKeyDerivationFunctionClassForEncryption(),
+                                           keyFunctionProps);
+    }
+
     @Override
     public byte[] decryptBytes(byte[] rawCiphertext, String password) throws GeneralSecurityException
     {
@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.legacy.crypto.passwd.internal;
+
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.social.legacy.crypto.passwd.KeyDerivationFunction;
+
+/**
+ * Measures how many iterations of a key derivation function fit in the configured processor time, once, and then
+ * periodically, instead of before each derivation.
+ *
+ * @version $Id$
+ */
+@Role
+public interface KeyDerivationFunctionCalibrator
+{
+    /**
+     * Get a key derivation function ready to derive a key with a fresh salt. If the function class supports it (see
+     * {@link CalibratedKeyDerivationFunction}), the cost parameters come from the last calibration done for this
+     * class and these parameters, and the function is calibrated now only if it never was. Otherwise the function is
+     * simply initialized with the parameters, which runs its timing trial.
+     *
+     * @param functionClass the class of the key derivation function to get.
+     * @param parameters the {@link Properties} to initialize the function with.
+     * @return an initialized key derivation function.
+     * @throws GeneralSecurityException if the function cannot be created or initialized.
+     */
+    KeyDerivationFunction getFunction(Class<? extends KeyDerivationFunction> functionClass, Properties parameters)
+        throws GeneralSecurityException;
+
+    /**
+     * @param functionClass the class of a key derivation function.
+     * @param parameters the {@link Properties} the function is initialized with.
+     * @return the cost parameters chosen by the last calibration for this class and these parameters, or null if
+     *         there was none.
+     */
+    Properties getCostParameters(Class<? extends KeyDerivationFunction> functionClass, Properties parameters);
+}
@@ -19,6 +19,9 @@
  */
 package org.xwiki.social.legacy.crypto.passwd.internal;
 
+import java.security.SecureRandom;
+import java.util.Properties;
+
 import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.Digest;
@@ -36,6 +39,7 @@ import org.bouncycastle.crypto.params.KeyParameter;
  * @version $Id: 76a30b90a727e56709310150f78254044700abd9 $
  */
 public class PBKDF2KeyDerivationFunction extends AbstractKeyDerivationFunction
+    implements CalibratedKeyDerivationFunction
 {
     /**
      * Fields in this class are set in stone!
@@ -101,6 +105,23 @@ public class PBKDF2KeyDerivationFunction extends AbstractKeyDerivationFunction
         this.derivedKeyLength = derivedKeyLength;
     }
 
+    @Override
+    public void renewSalt()
+    {
+        final byte[] newSalt = new byte[this.salt.length];
+        new SecureRandom().nextBytes(newSalt);
+        this.salt = newSalt;
+    }
+
+    @Override
+    public Properties getCostParameters()
+    {
+        final Properties parameters = new Properties();
+        parameters.setProperty("iterationCount", Integer.toString(this.iterationCount));
+        parameters.setProperty("derivedKeyLength", Integer.toString(this.derivedKeyLength));
+        return parameters;
+    }
+
     @Override
     public synchronized byte[] deriveKey(byte[] password)
     {
@@ -20,6 +20,7 @@
 package org.xwiki.social.legacy.crypto.passwd.internal;
 
 import java.security.SecureRandom;
+import java.util.Properties;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
 
@@ -38,6 +39,7 @@ import org.bouncycastle.crypto.digests.SHA256Digest;
  * @version $Id: 02ea9db96d7c938359f227947a61b029fe31e8e7 $
  */
 public class ScryptMemoryHardKeyDerivationFunction extends AbstractMemoryHardKeyDerivationFunction
+    implements CalibratedKeyDerivationFunction
 {
     /**
      * Fields in this class are set in stone!
@@ -176,6 +178,25 @@ public class ScryptMemoryHardKeyDerivationFunction extends AbstractMemoryHardKey
         System.arraycopy(salt, 0, this.salt, 0, salt.length);
     }
 
+    @Override
+    public void renewSalt()
+    {
+        final byte[] newSalt = new byte[this.salt.length];
+        new SecureRandom().nextBytes(newSalt);
+        this.salt = newSalt;
+    }
+
+    @Override
+    public Properties getCostParameters()
+    {
+        final Properties parameters = new Properties();
+        parameters.setProperty("memoryExpense", Integer.toString(this.memoryExpense));
+        parameters.setProperty("blockSize", Integer.toString(this.blockSize));
+        parameters.setProperty("processorExpense", Integer.toString(this.processorExpense));
+        parameters.setProperty("derivedKeyLength", Integer.toString(this.derivedKeyLength));
+        return parameters;
+    }
+
     @Override
     public byte[] deriveKey(final byte[] password)
     {
@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.brickred.socialauth.AccessGrant;
+import org.brickred.socialauth.AuthProvider;
+import org.brickred.socialauth.Profile;
+import org.brickred.socialauth.util.BirthDate;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Unit tests for {@link SocialAuthSession}.
+ *
+ * @version $Id$
+ */
+public class SocialAuthSessionTest
+{
+    private static final String PROVIDER = "facebook";
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "JohnDoe");
+
+    private static final String PRINCIPAL = "xwiki:XWiki.JohnDoe";
+
+    private static final int THREADS = 16;
+
+    @Test
+    public void serializedSessionWithOneGrantFitsTheBudget() throws Exception
+    {
+        SocialAuthSession session = newSession();
+
+        byte[] data = serialize(session);
+
+        Assert.assertTrue("A session with one grant takes " + data.length + " bytes",
+            data.length <= SocialAuthSession.SERIALIZED_SIZE_BUDGET);
+    }
+
+    @Test
+    public void serializedSessionIsRestored() throws Exception
+    {
+        SocialAuthSession session = deserialize(serialize(newSession()));
+
+        Assert.assertEquals("encrypted", session.getEncryptedPassword());
+        Assert.assertEquals(PROVIDER, session.getCurrentProvider());
+        Assert.assertEquals(USER, session.getUser());
+        Assert.assertEquals(PRINCIPAL, session.getPrincipal());
+        Assert.assertEquals("John Doe", session.getProfile().getFullName());
+        Assert.assertEquals(PROVIDER, session.getProfile(PROVIDER).getProviderId());
+        Assert.assertNull(session.getAuthProvider(PROVIDER));
+
+        SocialAuthGrant grant = session.getGrant(PROVIDER);
+        Assert.assertEquals("1234567890", grant.getValidatedId());
+        Assert.assertEquals(StringUtils.repeat("k", 200), grant.getAccessGrant().getKey());
+        Assert.assertEquals("secret", grant.getAccessGrant().getSecret());
+        Assert.assertEquals(5183999, grant.getAccessGrant().getAttribute("expires"));
+        Assert.assertTrue(grant.getExpiry() > System.currentTimeMillis());
+    }
+
+    @Test
+    public void emptySessionIsRestored() throws Exception
+    {
+        SocialAuthSession session = deserialize(serialize(new SocialAuthSession()));
+
+        Assert.assertNull(session.getUser());
+        Assert.assertNull(session.getProfile());
+        Assert.assertNull(session.getGrant(PROVIDER));
+    }
+
+    @Test
+    public void modifyingAProfileLeavesTheSnapshotUnchanged() throws Exception
+    {
+        SocialAuthSession session = newSession();
+
+        Profile profile = session.getProfile();
+        Assert.assertNotSame(profile, session.getProfile());
+        profile.setValidatedId("attacker");
+        profile.getDob().setYear(1900);
+
+        Assert.assertEquals("1234567890", session.getGrant(PROVIDER).getValidatedId());
+        Assert.assertEquals("1234567890", session.getProfile().getValidatedId());
+        Assert.assertEquals(1980, session.getProfile(PROVIDER).getDob().getYear());
+    }
+
+    @Test
+    public void concurrentChangesAreAllKept() throws Exception
+    {
+        final SocialAuthSession session = new SocialAuthSession();
+        final List<String> providers = new ArrayList<String>();
+        for (int i = 0; i < THREADS; i++) {
+            providers.add("provider" + i);
+        }
+
+        List<Throwable> failures = runConcurrently(new Task()
+        {
+            @Override
+            public void run(int index)
+            {
+                String provider = providers.get(index);
+                AccessGrant accessGrant = new AccessGrant("key" + index, "secret" + index);
+                session.putAuthProvider(provider, newAuthProvider(accessGrant), new Profile());
+                session.setCurrentProvider(provider);
+                session.setEncryptedPassword("encrypted" + index);
+                session.bindUser(USER, PRINCIPAL);
+            }
+        });
+
+        Assert.assertTrue(failures.isEmpty());
+        for (int i = 0; i < THREADS; i++) {
+            String provider = providers.get(i);
+            Assert.assertEquals("key" + i, session.getGrant(provider).getAccessGrant().getKey());
+            Assert.assertNotNull(session.getAuthProvider(provider));
+        }
+        Assert.assertTrue(providers.contains(session.getCurrentProvider()));
+        Assert.assertNotNull(session.getGrant(session.getCurrentProvider()));
+        Assert.assertEquals(USER, session.getUser());
+        Assert.assertEquals(PRINCIPAL, session.getPrincipal());
+    }
+
+    @Test
+    public void concurrentBindingsToDifferentUsersKeepTheFirst() throws Exception
+    {
+        final SocialAuthSession session = new SocialAuthSession();
+
+        List<Throwable> failures = runConcurrently(new Task()
+        {
+            @Override
+            public void run(int index)
+            {
+                session.bindUser(new DocumentReference("xwiki", "XWiki", "User" + index), "xwiki:XWiki.User" + index);
+            }
+        });
+
+        Assert.assertEquals(THREADS - 1, failures.size());
+        for (Throwable failure : failures) {
+            Assert.assertTrue(failure instanceof IllegalStateException);
+        }
+        // The principal was bound with its user
+        Assert.assertEquals("xwiki:XWiki." + session.getUser().getName(), session.getPrincipal());
+    }
+
+    /**
+     * Runs a task in {@link #THREADS} threads, released at once.
+     *
+     * @param task the task to run
+     * @return the exceptions the task has thrown
+     */
+    private static List<Throwable> runConcurrently(final Task task) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Throwable> failures = new ArrayList<Throwable>();
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int index = i;
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        task.run(index);
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    private interface Task
+    {
+        void run(int index);
+    }
+
+    private static SocialAuthSession newSession()
+    {
+        Profile profile = new Profile();
+        profile.setProviderId(PROVIDER);
+        profile.setValidatedId("1234567890");
+        profile.setFirstName("John");
+        profile.setLastName("Doe");
+        profile.setFullName("John Doe");
+        profile.setDisplayName("jdoe");
+        profile.setEmail("john.doe@example.com");
+        profile.setGender("male");
+        profile.setCountry("France");
+        profile.setLanguage("fr_FR");
+        profile.setLocation("Paris, France");
+        profile.setProfileImageURL("https://graph.facebook.com/1234567890/picture");
+        BirthDate dob = new BirthDate();
+        dob.setDay(1);
+        dob.setMonth(2);
+        dob.setYear(1980);
+        profile.setDob(dob);
+
+        // The size of a typical OAuth 2 access token
+        AccessGrant accessGrant = new AccessGrant(StringUtils.repeat("k", 200), "secret");
+        accessGrant.setProviderId(PROVIDER);
+        accessGrant.setAttribute("expires", 5183999);
+
+        SocialAuthSession session = new SocialAuthSession();
+        session.putAuthProvider(PROVIDER, newAuthProvider(accessGrant), profile);
+        session.setCurrentProvider(PROVIDER);
+        session.setEncryptedPassword("encrypted");
+        session.bindUser(USER, PRINCIPAL);
+        return session;
+    }
+
+    /**
+     * @param accessGrant the access grant of the connection
+     * @return a connection to a provider which only knows its access grant
+     */
+    static AuthProvider newAuthProvider(final AccessGrant accessGrant)
+    {
+        return (AuthProvider) Proxy.newProxyInstance(AuthProvider.class.getClassLoader(),
+            new Class< ? >[] {AuthProvider.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return "getAccessGrant".equals(method.getName()) ? accessGrant : null;
+                }
+            });
+    }
+
+    private static byte[] serialize(SocialAuthSession session) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(session);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static SocialAuthSession deserialize(byte[] data) throws Exception
+    {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (SocialAuthSession) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
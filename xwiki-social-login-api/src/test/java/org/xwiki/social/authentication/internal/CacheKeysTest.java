@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CacheKeys}.
+ *
+ * @version $Id$
+ */
+public class CacheKeysTest
+{
+    @Test
+    public void partsArePrefixedWithTheirLength()
+    {
+        Assert.assertEquals("5:xwiki8:facebook1234", CacheKeys.getKey("xwiki", "facebook", "1234"));
+        Assert.assertEquals("5:xwikialice", CacheKeys.getKey("xwiki", "alice"));
+    }
+
+    @Test
+    public void keysAreUnambiguous()
+    {
+        Assert.assertFalse(CacheKeys.getKey("xwiki", "ab", "c").equals(CacheKeys.getKey("xwiki", "a", "bc")));
+        Assert.assertFalse(CacheKeys.getKey("x1:a", "b").equals(CacheKeys.getKey("x", "1:ab")));
+    }
+}
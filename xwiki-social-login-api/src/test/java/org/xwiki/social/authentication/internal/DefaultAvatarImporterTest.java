@@ -0,0 +1,275 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+
+/**
+ * Unit tests for {@link DefaultAvatarImporter}, downloading and downscaling pictures without a server.
+ *
+ * @version $Id$
+ */
+public class DefaultAvatarImporterTest
+{
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private static final int MAX_DIMENSION = 50;
+
+    private static final String URL = "http://example.org/avatar.png";
+
+    private static final String PNG = "image/png";
+
+    private File temporaryDirectory;
+
+    private DefaultAvatarImporter importer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.temporaryDirectory = File.createTempFile("avatars", "");
+        this.temporaryDirectory.delete();
+        this.temporaryDirectory.mkdir();
+
+        this.importer = new DefaultAvatarImporter();
+        ReflectionUtils.setFieldValue(this.importer, "logger", NOPLogger.NOP_LOGGER);
+        ReflectionUtils.setFieldValue(this.importer, "environment", proxy(Environment.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                return "getTemporaryDirectory".equals(method.getName()) ? temporaryDirectory : null;
+            }
+        }));
+        ReflectionUtils.setFieldValue(this.importer, "configuration",
+            proxy(SocialAuthConfiguration.class, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("getAvatarMaxSize".equals(name)) {
+                        return MAX_SIZE;
+                    } else if (name.startsWith("getAvatarMax")) {
+                        return MAX_DIMENSION;
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.temporaryDirectory);
+    }
+
+    @Test
+    public void pictureIsDownloadedAndDownscaled() throws Exception
+    {
+        byte[] picture = encode(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB));
+        ResponseStub get = new ResponseStub(PNG, picture.length, picture);
+
+        File file = this.importer.download(get, URL);
+        Assert.assertNotNull(file);
+        Assert.assertEquals(picture.length, file.length());
+        Assert.assertFalse(get.aborted);
+
+        BufferedImage avatar = ImageIO.read(new ByteArrayInputStream(this.importer.downscale(file)));
+        Assert.assertEquals(MAX_DIMENSION, avatar.getWidth());
+        Assert.assertTrue(avatar.getHeight() <= MAX_DIMENSION);
+    }
+
+    @Test
+    public void oversizedBodyIsRefusedWithoutReadingIt() throws Exception
+    {
+        ResponseStub get = new ResponseStub(PNG, -1, new byte[16 * MAX_SIZE]);
+
+        Assert.assertNull(this.importer.download(get, URL));
+        Assert.assertTrue(get.aborted);
+        Assert.assertTrue(get.body.read < 2 * MAX_SIZE);
+        Assert.assertEquals(0, this.temporaryDirectory.list().length);
+    }
+
+    @Test
+    public void lyingContentLengthIsNotTrusted() throws Exception
+    {
+        ResponseStub get = new ResponseStub(PNG, 1024, new byte[16 * MAX_SIZE]);
+
+        Assert.assertNull(this.importer.download(get, URL));
+        Assert.assertTrue(get.aborted);
+        Assert.assertTrue(get.body.read < 2 * MAX_SIZE);
+        Assert.assertEquals(0, this.temporaryDirectory.list().length);
+    }
+
+    @Test
+    public void announcedOversizedBodyIsNotRead() throws Exception
+    {
+        ResponseStub get = new ResponseStub(PNG, MAX_SIZE + 1, new byte[MAX_SIZE + 1]);
+
+        Assert.assertNull(this.importer.download(get, URL));
+        Assert.assertTrue(get.aborted);
+        Assert.assertEquals(0, get.body.read);
+    }
+
+    @Test
+    public void nonImageContentTypeIsRefused() throws Exception
+    {
+        ResponseStub get = new ResponseStub("text/html", 10, "<html/>".getBytes("UTF-8"));
+
+        Assert.assertNull(this.importer.download(get, URL));
+        Assert.assertEquals(0, get.body.read);
+        Assert.assertEquals(0, this.temporaryDirectory.list().length);
+    }
+
+    @Test
+    public void pictureWithHugeDeclaredDimensionsIsNotDecoded() throws Exception
+    {
+        // A small file whose header claims 100 million pixels
+        byte[] picture = encode(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        ByteBuffer header = ByteBuffer.wrap(picture);
+        // The IHDR chunk follows the 8 bytes signature, its data starts with the width and the height
+        header.putInt(16, 10000);
+        header.putInt(20, 10000);
+        CRC32 crc = new CRC32();
+        crc.update(picture, 12, 17);
+        header.putInt(29, (int) crc.getValue());
+        File file = new File(this.temporaryDirectory, "huge.png");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(picture);
+        } finally {
+            output.close();
+        }
+
+        Assert.assertNull(this.importer.downscale(file));
+    }
+
+    @Test
+    public void fileWhichIsNotAnImageIsRefused() throws Exception
+    {
+        File file = new File(this.temporaryDirectory, "page.png");
+        FileUtils.writeStringToFile(file, "<html/>", "UTF-8");
+
+        Assert.assertNull(this.importer.downscale(file));
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", output);
+        return output.toByteArray();
+    }
+
+    private static <T> T proxy(Class<T> role, InvocationHandler handler)
+    {
+        return role.cast(Proxy.newProxyInstance(role.getClassLoader(), new Class< ? >[] {role}, handler));
+    }
+
+    /**
+     * An executed request, with the response headers and body of the test.
+     */
+    private static final class ResponseStub extends GetMethod
+    {
+        private final String contentType;
+
+        private final long contentLength;
+
+        private final CountingInputStream body;
+
+        private boolean aborted;
+
+        ResponseStub(String contentType, long contentLength, byte[] body)
+        {
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+            this.body = new CountingInputStream(body);
+        }
+
+        @Override
+        public Header getResponseHeader(String name)
+        {
+            return "Content-Type".equals(name) ? new Header(name, this.contentType) : null;
+        }
+
+        @Override
+        public long getResponseContentLength()
+        {
+            return this.contentLength;
+        }
+
+        @Override
+        public InputStream getResponseBodyAsStream()
+        {
+            return this.body;
+        }
+
+        @Override
+        public void abort()
+        {
+            this.aborted = true;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the response body.
+     */
+    private static final class CountingInputStream extends ByteArrayInputStream
+    {
+        private int read;
+
+        CountingInputStream(byte[] body)
+        {
+            super(body);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length)
+        {
+            int count = super.read(buffer, offset, length);
+            this.read += Math.max(0, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Unit tests for {@link DefaultGroupMembershipBuffer}, with many first logins queuing their memberships at once.
+ *
+ * @version $Id$
+ */
+public class DefaultGroupMembershipBufferTest
+{
+    private static final int LOGINS = 50;
+
+    /** Number of members the groups have before the logins. */
+    private static final int CURRENT_MEMBERS = 10;
+
+    /** A loose bound on the time to provision the logins, which takes a few milliseconds. */
+    private static final long MAX_PROVISIONING_TIME = TimeUnit.SECONDS.toNanos(10);
+
+    private static final DocumentReference ALL_GROUP = new DocumentReference("xwiki", "XWiki", "XWikiAllGroup");
+
+    private static final DocumentReference SOCIAL_GROUP = new DocumentReference("xwiki", "XWiki", "SocialGroup");
+
+    private final DefaultGroupMembershipBuffer buffer = new DefaultGroupMembershipBuffer();
+
+    @Test
+    public void concurrentFirstLoginsAreSavedOncePerGroup() throws Exception
+    {
+        runLogins();
+
+        List<DefaultGroupMembershipBuffer.GroupUpdate> updates = this.buffer.drain();
+        Assert.assertEquals(2, updates.size());
+        Map<DocumentReference, Set<String>> members = new HashMap<DocumentReference, Set<String>>();
+        collect(updates, members);
+        assertAllMembers(members);
+        Assert.assertTrue(this.buffer.drain().isEmpty());
+    }
+
+    @Test
+    public void concurrentFirstLoginsWhileFlushing() throws Exception
+    {
+        final Map<DocumentReference, Set<String>> members = new HashMap<DocumentReference, Set<String>>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread flusher = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    while (!done.get()) {
+                        collect(buffer.drain(), members);
+                    }
+                } catch (Throwable e) {
+                    // Failing this thread wouldn't fail the test
+                    failure.set(e);
+                }
+            }
+        };
+        flusher.start();
+        try {
+            runLogins();
+        } finally {
+            done.set(true);
+            flusher.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        collect(this.buffer.drain(), members);
+
+        assertAllMembers(members);
+    }
+
+    @Test
+    public void concurrentFirstLoginsAreProvisionedWithOneSavePerGroup() throws Exception
+    {
+        // The group documents, holding some members already
+        Map<DocumentReference, Set<String>> groups = new HashMap<DocumentReference, Set<String>>();
+        groups.put(ALL_GROUP, new HashSet<String>());
+        groups.put(SOCIAL_GROUP, new HashSet<String>());
+        for (int i = 0; i < CURRENT_MEMBERS; i++) {
+            groups.get(ALL_GROUP).add("XWiki.user" + i);
+        }
+        Map<DocumentReference, List<Set<String>>> saves = new HashMap<DocumentReference, List<Set<String>>>();
+
+        long start = System.nanoTime();
+        runLogins();
+        for (DefaultGroupMembershipBuffer.GroupUpdate update : this.buffer.drain()) {
+            process(update, groups, saves);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Assert.assertEquals(1, saves.get(ALL_GROUP).size());
+        Assert.assertEquals(1, saves.get(SOCIAL_GROUP).size());
+        Assert.assertEquals(LOGINS - CURRENT_MEMBERS, saves.get(ALL_GROUP).get(0).size());
+        Assert.assertEquals(LOGINS, saves.get(SOCIAL_GROUP).get(0).size());
+        for (int i = 0; i < CURRENT_MEMBERS; i++) {
+            Assert.assertFalse(saves.get(ALL_GROUP).get(0).contains("XWiki.user" + i));
+        }
+        Assert.assertEquals(LOGINS, groups.get(ALL_GROUP).size());
+        Assert.assertEquals(LOGINS, groups.get(SOCIAL_GROUP).size());
+
+        // Queuing again members who are already there saves nothing
+        this.buffer.queue(ALL_GROUP, "XWiki.user0");
+        for (DefaultGroupMembershipBuffer.GroupUpdate update : this.buffer.drain()) {
+            process(update, groups, saves);
+        }
+        Assert.assertEquals(1, saves.get(ALL_GROUP).size());
+
+        System.out.println(String.format("Provisioned %d concurrent first logins in %.1f ms (%.0f logins/s)", LOGINS,
+            elapsed / 1e6, LOGINS * 1e9 / elapsed));
+        Assert.assertTrue(elapsed < MAX_PROVISIONING_TIME);
+    }
+
+    /**
+     * Does what {@link DefaultGroupMembershipBuffer#process} does with a group document, on a stubbed group: skips the
+     * members it has already and saves the others at once.
+     *
+     * @param update the members queued for a group
+     * @param groups the members of the groups, by group
+     * @param saves the members added by each save, by group
+     */
+    private void process(DefaultGroupMembershipBuffer.GroupUpdate update, Map<DocumentReference, Set<String>> groups,
+        Map<DocumentReference, List<Set<String>>> saves)
+    {
+        Set<String> groupMembers = groups.get(update.getGroup());
+        Set<String> newMembers = DefaultGroupMembershipBuffer.getNewMembers(update.getMembers(), groupMembers);
+        if (newMembers.isEmpty()) {
+            return;
+        }
+        groupMembers.addAll(newMembers);
+        List<Set<String>> groupSaves = saves.get(update.getGroup());
+        if (groupSaves == null) {
+            groupSaves = new ArrayList<Set<String>>();
+            saves.put(update.getGroup(), groupSaves);
+        }
+        groupSaves.add(newMembers);
+    }
+
+    /**
+     * Queues the memberships of {@link #LOGINS} users from as many threads, all started at once.
+     */
+    private void runLogins() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(LOGINS);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < LOGINS; i++) {
+                final String member = "XWiki.user" + i;
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        buffer.queue(ALL_GROUP, member);
+                        buffer.queue(SOCIAL_GROUP, member);
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the members of the updates, failing if a member is added twice to the same group.
+     */
+    private void collect(List<DefaultGroupMembershipBuffer.GroupUpdate> updates,
+        Map<DocumentReference, Set<String>> members)
+    {
+        for (DefaultGroupMembershipBuffer.GroupUpdate update : updates) {
+            Set<String> groupMembers = members.get(update.getGroup());
+            if (groupMembers == null) {
+                groupMembers = new HashSet<String>();
+                members.put(update.getGroup(), groupMembers);
+            }
+            for (String member : update.getMembers()) {
+                Assert.assertTrue("Member [" + member + "] added twice", groupMembers.add(member));
+            }
+        }
+    }
+
+    private void assertAllMembers(Map<DocumentReference, Set<String>> members)
+    {
+        Assert.assertEquals(LOGINS, members.get(ALL_GROUP).size());
+        Assert.assertEquals(LOGINS, members.get(SOCIAL_GROUP).size());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+
+/**
+ * Unit tests for {@link DefaultOAuthConsumerConfigurationProvider}, with wikis overriding the file.
+ *
+ * @version $Id$
+ */
+public class DefaultOAuthConsumerConfigurationProviderTest
+{
+    private static final String FILE = "graph.facebook.com.consumer_key = filekey\n"
+        + "graph.facebook.com.consumer_secret = filesecret\n";
+
+    private static final String WIKI = "wiki1";
+
+    /** The wiki of the current request. */
+    private String currentWiki = WIKI;
+
+    /** The OAuth properties of the current wiki, by wiki. */
+    private final Map<String, String> wikiProperties = new ConcurrentHashMap<String, String>();
+
+    /** Number of times the OAuth properties of a wiki have been read. */
+    private final AtomicInteger reads = new AtomicInteger();
+
+    /** Run when the OAuth properties of a wiki are read, to change them while a snapshot is built. */
+    private Runnable onRead;
+
+    private DefaultOAuthConsumerConfigurationProvider provider;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.provider = new DefaultOAuthConsumerConfigurationProvider()
+        {
+            @Override
+            String getConfigurationWiki()
+            {
+                return currentWiki;
+            }
+        };
+        ReflectionUtils.setFieldValue(this.provider, "logger", NOPLogger.NOP_LOGGER);
+        ReflectionUtils.setFieldValue(this.provider, "environment", proxy(Environment.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception
+            {
+                return "getResourceAsStream".equals(method.getName()) ? new ByteArrayInputStream(
+                    FILE.getBytes("ISO-8859-1")) : null;
+            }
+        }));
+        ReflectionUtils.setFieldValue(this.provider, "socialAuthConfiguration",
+            proxy(SocialAuthConfiguration.class, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (!"getOAuthProperties".equals(method.getName())) {
+                        return null;
+                    }
+                    reads.incrementAndGet();
+                    String properties = wikiProperties.get(currentWiki);
+                    if (onRead != null) {
+                        onRead.run();
+                    }
+                    return properties != null ? properties : "";
+                }
+            }));
+        ReflectionUtils.setFieldValue(this.provider, "cacheManager", proxy(CacheManager.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                return "createNewCache".equals(method.getName()) ? newCache() : null;
+            }
+        }));
+        this.provider.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.provider.dispose();
+    }
+
+    @Test
+    public void wikiPropertiesOverrideTheFile() throws Exception
+    {
+        this.wikiProperties.put(WIKI, "graph.facebook.com.consumer_key = wikikey\n");
+
+        Assert.assertEquals("wikikey", getConsumerKey());
+        Assert.assertEquals("filesecret",
+            this.provider.getConfiguration().getSocialAuthConfig().getProviderConfig("facebook")
+                .get_consumerSecret());
+
+        this.currentWiki = "wiki2";
+        Assert.assertEquals("filekey", getConsumerKey());
+    }
+
+    @Test
+    public void invalidationRebuildsTheSnapshot() throws Exception
+    {
+        this.wikiProperties.put(WIKI, "graph.facebook.com.consumer_key = before\n");
+        Assert.assertEquals("before", getConsumerKey());
+
+        this.wikiProperties.put(WIKI, "graph.facebook.com.consumer_key = after\n");
+        // Cached until the configuration document changes
+        Assert.assertEquals("before", getConsumerKey());
+
+        this.provider.invalidate(WIKI);
+        Assert.assertEquals("after", getConsumerKey());
+    }
+
+    @Test
+    public void snapshotBuiltDuringAnInvalidationIsNotCached() throws Exception
+    {
+        this.wikiProperties.put(WIKI, "graph.facebook.com.consumer_key = before\n");
+        this.onRead = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // The configuration document is saved while the snapshot is built from its previous version
+                onRead = null;
+                wikiProperties.put(WIKI, "graph.facebook.com.consumer_key = after\n");
+                provider.invalidate(WIKI);
+            }
+        };
+
+        Assert.assertEquals("before", getConsumerKey());
+        Assert.assertEquals("after", getConsumerKey());
+        Assert.assertEquals(2, this.reads.get());
+        // Cached from now on
+        Assert.assertEquals("after", getConsumerKey());
+        Assert.assertEquals(2, this.reads.get());
+    }
+
+    private String getConsumerKey() throws Exception
+    {
+        return this.provider.getConfiguration().getSocialAuthConfig().getProviderConfig("facebook")
+            .get_consumerKey();
+    }
+
+    private static <T> T proxy(Class<T> role, InvocationHandler handler)
+    {
+        return role.cast(Proxy.newProxyInstance(role.getClassLoader(), new Class< ? >[] {role}, handler));
+    }
+
+    /**
+     * @return a cache backed by a map, without eviction
+     */
+    private static Cache< ? > newCache()
+    {
+        final Map<Object, Object> entries = new ConcurrentHashMap<Object, Object>();
+        return proxy(Cache.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if ("set".equals(name)) {
+                    entries.put(args[0], args[1]);
+                } else if ("get".equals(name)) {
+                    return entries.get(args[0]);
+                } else if ("remove".equals(name)) {
+                    entries.remove(args[0]);
+                } else if ("removeAll".equals(name)) {
+                    entries.clear();
+                }
+                return null;
+            }
+        });
+    }
+}
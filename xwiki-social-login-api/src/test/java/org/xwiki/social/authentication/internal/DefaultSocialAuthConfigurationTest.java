@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Unit tests for {@link DefaultSocialAuthConfiguration}.
+ *
+ * @version $Id$
+ */
+public class DefaultSocialAuthConfigurationTest
+{
+    /** The properties of the configuration source, the others are not set. */
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+
+    private final DefaultSocialAuthConfiguration configuration = new DefaultSocialAuthConfiguration();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ReflectionUtils.setFieldValue(this.configuration, "configuration", Proxy.newProxyInstance(
+            ConfigurationSource.class.getClassLoader(), new Class< ? >[] {ConfigurationSource.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    Object value = properties.get(args[0]);
+                    return value != null || args.length < 2 ? value : args[1];
+                }
+            }));
+    }
+
+    @Test
+    public void avatarLimitsAreConfigured()
+    {
+        this.properties.put("socialauth.avatar.maxWidth", 64);
+        this.properties.put("socialauth.avatar.maxHeight", 48);
+        this.properties.put("socialauth.avatar.maxSize", 1024);
+
+        Assert.assertEquals(64, this.configuration.getAvatarMaxWidth());
+        Assert.assertEquals(48, this.configuration.getAvatarMaxHeight());
+        Assert.assertEquals(1024, this.configuration.getAvatarMaxSize());
+    }
+
+    @Test
+    public void invalidAvatarLimitsFallBackToTheDefaults()
+    {
+        this.properties.put("socialauth.avatar.maxWidth", 0);
+        this.properties.put("socialauth.avatar.maxHeight", -1);
+        this.properties.put("socialauth.avatar.maxSize", 0);
+
+        Assert.assertEquals(200, this.configuration.getAvatarMaxWidth());
+        Assert.assertEquals(200, this.configuration.getAvatarMaxHeight());
+        Assert.assertEquals(2 * 1024 * 1024, this.configuration.getAvatarMaxSize());
+    }
+}
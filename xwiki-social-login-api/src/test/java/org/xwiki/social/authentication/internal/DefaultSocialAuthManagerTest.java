@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brickred.socialauth.util.Profile;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.social.authentication.SocialAuthException;
+
+/**
+ * Unit tests for {@link DefaultSocialAuthManager}, with concurrent first logins of the same social identity.
+ *
+ * @version $Id$
+ */
+public class DefaultSocialAuthManagerTest
+{
+    private static final int LOGINS = 8;
+
+    private static final String WIKI = "xwiki";
+
+    /** Number of users created. */
+    private final AtomicInteger creations = new AtomicInteger();
+
+    /** Holds the creation of the user until the concurrent logins have started. */
+    private final CountDownLatch created = new CountDownLatch(1);
+
+    /** The user created, found by the logins coming after its creation. */
+    private volatile DocumentReference user;
+
+    private final DefaultSocialAuthManager manager = new DefaultSocialAuthManager()
+    {
+        @Override
+        DocumentReference getOrCreateUser(Profile profile) throws SocialAuthException
+        {
+            if (user != null) {
+                return user;
+            }
+            DocumentReference newUser = new DocumentReference(WIKI, "XWiki", "user" + creations.incrementAndGet());
+            try {
+                created.await();
+            } catch (InterruptedException e) {
+                throw new SocialAuthException("Interrupted", e);
+            }
+            user = newUser;
+            return newUser;
+        }
+    };
+
+    @Test
+    public void concurrentFirstLoginsOfAnIdentityCreateASingleUser() throws Exception
+    {
+        final Profile profile = new Profile();
+        profile.setProviderId("facebook");
+        profile.setValidatedId("1234");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(LOGINS);
+        List<Future<DocumentReference>> logins = new ArrayList<Future<DocumentReference>>();
+        try {
+            for (int i = 0; i < LOGINS; i++) {
+                logins.add(executor.submit(new Callable<DocumentReference>()
+                {
+                    @Override
+                    public DocumentReference call() throws Exception
+                    {
+                        start.await();
+                        return manager.provisionUser(WIKI, profile);
+                    }
+                }));
+            }
+            start.countDown();
+            // Let the other logins find the creation in progress
+            Thread.sleep(200);
+            this.created.countDown();
+
+            for (Future<DocumentReference> login : logins) {
+                Assert.assertEquals(new DocumentReference(WIKI, "XWiki", "user1"), login.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, this.creations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
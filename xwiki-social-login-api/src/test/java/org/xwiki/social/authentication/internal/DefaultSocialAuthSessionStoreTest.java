@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.social.authentication.SocialAuthSession;
+
+/**
+ * Unit tests for {@link DefaultSocialAuthSessionStore}, with concurrent requests of a HTTP session each seeing their
+ * own HTTP session object, like some containers give them.
+ *
+ * @version $Id$
+ */
+public class DefaultSocialAuthSessionStoreTest
+{
+    private static final int REQUESTS = 16;
+
+    private static final int ROUNDS = 100;
+
+    private final DefaultSocialAuthSessionStore store = new DefaultSocialAuthSessionStore();
+
+    @Test
+    public void concurrentRequestsShareOneSocialSession() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<SocialAuthSession>> sessions = new ArrayList<Future<SocialAuthSession>>();
+                for (int i = 0; i < REQUESTS; i++) {
+                    sessions.add(executor.submit(new Callable<SocialAuthSession>()
+                    {
+                        @Override
+                        public SocialAuthSession call() throws Exception
+                        {
+                            HttpServletRequest request = newRequest(attributes);
+                            start.await();
+                            return store.getOrCreate(request, null);
+                        }
+                    }));
+                }
+                start.countDown();
+
+                SocialAuthSession first = sessions.get(0).get();
+                for (Future<SocialAuthSession> session : sessions) {
+                    Assert.assertSame(first, session.get());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param attributes the attributes of the HTTP session
+     * @return a request giving a new HTTP session object on each call, backed by the same attributes
+     */
+    private static HttpServletRequest newRequest(final ConcurrentMap<String, Object> attributes)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+            new Class< ? >[] {HttpServletRequest.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return "getSession".equals(method.getName()) ? newSession(attributes) : null;
+                }
+            });
+    }
+
+    private static HttpSession newSession(final ConcurrentMap<String, Object> attributes)
+    {
+        return (HttpSession) Proxy.newProxyInstance(HttpSession.class.getClassLoader(),
+            new Class< ? >[] {HttpSession.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if ("getAttribute".equals(method.getName())) {
+                        return attributes.get(args[0]);
+                    } else if ("setAttribute".equals(method.getName())) {
+                        attributes.put((String) args[0], args[1]);
+                    } else if ("removeAttribute".equals(method.getName())) {
+                        attributes.remove(args[0]);
+                    } else if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    } else if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Unit tests for {@link DefaultSocialLoginProfileMapping}, against a session stub holding the social profiles of the
+ * generic tables and the rows of the mapped table.
+ *
+ * @version $Id$
+ */
+public class DefaultSocialLoginProfileMappingTest
+{
+    private static final String WIKI = "xwiki";
+
+    private static final String PROVIDER = "provider";
+
+    private static final String VALIDATED_ID = "validatedId";
+
+    /** The identities of the social profiles stored in the generic tables, by object id. */
+    private final SortedMap<Long, String[]> profiles = new TreeMap<Long, String[]>();
+
+    /** The rows of the mapped table, by object id. */
+    private final Map<Long, Map<String, Object>> mapped = new HashMap<Long, Map<String, Object>>();
+
+    /** The first profile of each batch of the backfill. */
+    private final List<Integer> batches = new ArrayList<Integer>();
+
+    private final Session session = newSession();
+
+    private DefaultSocialLoginProfileMapping mapping;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.mapping = new DefaultSocialLoginProfileMapping()
+        {
+            @Override
+            int[] backfillBatch(XWikiHibernateStore store, XWikiContext context, int first, Set<String> identities)
+            {
+                batches.add(first);
+                return backfill(session, first, identities);
+            }
+        };
+        ReflectionUtils.setFieldValue(this.mapping, "logger", NOPLogger.NOP_LOGGER);
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void findDuplicatesReturnsTheIdentitiesUsedTwice()
+    {
+        this.profiles.put(1L, new String[] {"facebook", "1"});
+        this.profiles.put(2L, new String[] {"facebook", "2"});
+        this.profiles.put(3L, new String[] {"twitter", "1"});
+        Assert.assertTrue(this.mapping.findDuplicates(this.session).isEmpty());
+
+        this.profiles.put(4L, new String[] {"facebook", "2"});
+        List<Object[]> duplicates = this.mapping.findDuplicates(this.session);
+        Assert.assertEquals(1, duplicates.size());
+        Assert.assertEquals(Arrays.asList("facebook", "2"), Arrays.asList(duplicates.get(0)));
+    }
+
+    @Test
+    public void backfillCopiesEveryProfileInBatches() throws Exception
+    {
+        int count = 2 * DefaultSocialLoginProfileMapping.BATCH_SIZE + 1;
+        for (long id = 1; id <= count; id++) {
+            this.profiles.put(id, new String[] {"facebook", String.valueOf(id)});
+        }
+
+        this.mapping.backfill(null, newContext());
+
+        Assert.assertEquals(Arrays.asList(0, DefaultSocialLoginProfileMapping.BATCH_SIZE,
+            2 * DefaultSocialLoginProfileMapping.BATCH_SIZE), this.batches);
+        Assert.assertEquals(count, this.mapped.size());
+        for (Map.Entry<Long, String[]> profile : this.profiles.entrySet()) {
+            Map<String, Object> row = this.mapped.get(profile.getKey());
+            Assert.assertEquals(profile.getKey(), row.get("id"));
+            Assert.assertEquals(profile.getValue()[0], row.get(PROVIDER));
+            Assert.assertEquals(profile.getValue()[1], row.get(VALIDATED_ID));
+        }
+
+        // Running it again only copies the profiles saved since
+        this.profiles.put(count + 1L, new String[] {"twitter", "1"});
+        this.batches.clear();
+        this.mapping.backfill(null, newContext());
+        Assert.assertEquals(3, this.batches.size());
+        Assert.assertEquals(count + 1, this.mapped.size());
+    }
+
+    @Test(expected = HibernateException.class)
+    public void backfillRefusesADuplicateIdentity() throws Exception
+    {
+        this.profiles.put(1L, new String[] {"facebook", "1"});
+        this.profiles.put(2L, new String[] {"facebook", "1"});
+
+        this.mapping.backfill(null, newContext());
+    }
+
+    @Test(expected = HibernateException.class)
+    public void backfillRefusesAnIdentityAlreadyMapped() throws Exception
+    {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", 1L);
+        row.put(PROVIDER, "facebook");
+        row.put(VALIDATED_ID, "1");
+        this.mapped.put(1L, row);
+        // Saved in the generic tables while the table was filled, with the identity of a profile copied already
+        this.profiles.put(1L, new String[] {"facebook", "1"});
+        this.profiles.put(2L, new String[] {"facebook", "1"});
+
+        this.mapping.backfill(null, newContext());
+    }
+
+    @Test
+    public void profileSavesAreHeldWhileTheMappingIsSwitched() throws Exception
+    {
+        // A profile save in progress when the switch starts
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch saved = new CountDownLatch(1);
+        Future<Void> inProgress = this.executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                mapping.startProfileSave(WIKI);
+                started.countDown();
+                saved.await();
+                mapping.endProfileSave();
+                return null;
+            }
+        });
+        started.await();
+
+        Future<Void> hold = this.executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                mapping.holdProfileSaves(WIKI);
+                return null;
+            }
+        });
+        assertBlocked(hold);
+        saved.countDown();
+        inProgress.get(10, TimeUnit.SECONDS);
+        hold.get(10, TimeUnit.SECONDS);
+
+        // New saves wait for the switch to end, in this wiki only
+        Future<Void> held = startProfileSave(WIKI);
+        startProfileSave("otherwiki").get(10, TimeUnit.SECONDS);
+        assertBlocked(held);
+        this.mapping.releaseProfileSaves(WIKI);
+        held.get(10, TimeUnit.SECONDS);
+    }
+
+    private Future<Void> startProfileSave(final String wiki)
+    {
+        return this.executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                mapping.startProfileSave(wiki);
+                mapping.endProfileSave();
+                return null;
+            }
+        });
+    }
+
+    private static void assertBlocked(Future< ? > future) throws Exception
+    {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to wait");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+    }
+
+    private static XWikiContext newContext()
+    {
+        XWikiContext context = new XWikiContext();
+        context.setDatabase(WIKI);
+        return context;
+    }
+
+    private Session newSession()
+    {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class< ? >[] {Session.class},
+            new InvocationHandler()
+            {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("createQuery".equals(name)) {
+                        return newQuery((String) args[0]);
+                    } else if ("getSession".equals(name)) {
+                        return proxy;
+                    } else if ("get".equals(name)) {
+                        return mapped.get(args[1]);
+                    } else if ("save".equals(name)) {
+                        Map<String, Object> row = (Map<String, Object>) args[1];
+                        mapped.put((Long) row.get("id"), row);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * @return a query evaluating the few queries of the mapping against the stub tables
+     */
+    private Query newQuery(final String hql)
+    {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        final int[] range = {0, Integer.MAX_VALUE};
+        return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class< ? >[] {Query.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("setFirstResult".equals(name)) {
+                        range[0] = (Integer) args[0];
+                    } else if ("setMaxResults".equals(name)) {
+                        range[1] = (Integer) args[0];
+                    } else if (name.startsWith("set")) {
+                        Object value = args[1];
+                        parameters.put((String) args[0], value instanceof Object[] ? Arrays.asList((Object[]) value)
+                            : value);
+                    } else if ("list".equals(name)) {
+                        List<Object> results = list(hql, parameters);
+                        int from = Math.min(range[0], results.size());
+                        return new ArrayList<Object>(results.subList(from,
+                            (int) Math.min((long) from + range[1], results.size())));
+                    }
+                    return proxy;
+                }
+            });
+    }
+
+    private List<Object> list(String hql, Map<String, Object> parameters)
+    {
+        List<Object> results = new ArrayList<Object>();
+        if (hql.startsWith("select obj.id")) {
+            Assert.assertEquals("XWiki.SocialLoginProfileClass", parameters.get("className"));
+            results.addAll(this.profiles.keySet());
+        } else if (hql.startsWith("select prop.id.id")) {
+            for (Object id : (Collection< ? >) parameters.get("ids")) {
+                String[] profile = this.profiles.get(id);
+                results.add(new Object[] {id, PROVIDER, profile[0]});
+                results.add(new Object[] {id, VALIDATED_ID, profile[1]});
+            }
+        } else if (hql.startsWith("select profile.id")) {
+            for (Map<String, Object> row : this.mapped.values()) {
+                if (row.get(PROVIDER).equals(parameters.get(PROVIDER))
+                    && row.get(VALIDATED_ID).equals(parameters.get("validated"))) {
+                    results.add(row.get("id"));
+                }
+            }
+        } else if (hql.startsWith("select provider.value")) {
+            Assert.assertEquals("XWiki.SocialLoginProfileClass", parameters.get("className"));
+            Map<List<String>, Integer> counts = new HashMap<List<String>, Integer>();
+            for (String[] profile : this.profiles.values()) {
+                List<String> identity = Arrays.asList(profile);
+                Integer count = counts.get(identity);
+                counts.put(identity, count == null ? 1 : count + 1);
+            }
+            for (Map.Entry<List<String>, Integer> count : counts.entrySet()) {
+                if (count.getValue() > 1) {
+                    results.add(count.getKey().toArray());
+                }
+            }
+        } else {
+            Assert.fail("Unexpected query [" + hql + "]");
+        }
+        return results;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
+
+/**
+ * Unit tests for {@link DefaultUsernameAllocator}, with the user pages of a wiki held in memory.
+ *
+ * @version $Id$
+ */
+public class DefaultUsernameAllocatorTest
+{
+    private static final String WIKI = "xwiki";
+
+    private static final int THREADS = 16;
+
+    private static final int ALLOCATIONS = 50;
+
+    private static final Pattern SUFFIXED = Pattern.compile("alice_(\\d+)");
+
+    /** The names of the user pages saved in the wiki. */
+    private final Set<String> pages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The counters of the allocator, which the tests evict. */
+    private final Map<Object, Object> counters = new ConcurrentHashMap<Object, Object>();
+
+    private DefaultUsernameAllocator allocator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.allocator = new DefaultUsernameAllocator()
+        {
+            @Override
+            boolean exists(String wiki, String username)
+            {
+                return pages.contains(username);
+            }
+
+            @Override
+            int getNextSuffix(String wiki, String base)
+            {
+                // What the query would find
+                int next = -1;
+                for (String page : pages) {
+                    Matcher matcher = SUFFIXED.matcher(page);
+                    if (page.equals(base)) {
+                        next = Math.max(next, 0);
+                    } else if (matcher.matches()) {
+                        next = Math.max(next, Integer.parseInt(matcher.group(1)) + 1);
+                    }
+                }
+                return next;
+            }
+        };
+        ReflectionUtils.setFieldValue(this.allocator, "cacheManager",
+            Proxy.newProxyInstance(CacheManager.class.getClassLoader(), new Class< ? >[] {CacheManager.class},
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "createNewCache".equals(method.getName()) ? newCache() : null;
+                    }
+                }));
+        this.allocator.initialize();
+    }
+
+    @Test
+    public void concurrentAllocationsOfTheSameNameAreDistinct() throws Exception
+    {
+        this.pages.add("alice");
+        this.pages.add("alice_1");
+        this.pages.add("alice_3");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<List<String>>()
+                {
+                    @Override
+                    public List<String> call() throws Exception
+                    {
+                        start.await();
+                        List<String> names = new ArrayList<String>();
+                        for (int j = 0; j < ALLOCATIONS; j++) {
+                            names.add(allocator.allocate(WIKI, "alice"));
+                        }
+                        return names;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Set<String> names = new HashSet<String>();
+            for (Future<List<String>> future : futures) {
+                names.addAll(future.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(THREADS * ALLOCATIONS, names.size());
+            // The suffixes follow the highest one in use, without filling the gaps
+            for (int suffix = 4; suffix < 4 + THREADS * ALLOCATIONS; suffix++) {
+                Assert.assertTrue(names.contains("alice_" + suffix));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nameIsNotHandedOutAgainBeforeItsPageIsSaved()
+    {
+        Assert.assertEquals("alice", this.allocator.allocate(WIKI, "alice"));
+
+        // The counter is evicted and seeded again while the user page is being saved
+        this.counters.clear();
+        Assert.assertEquals("alice_0", this.allocator.allocate(WIKI, "alice"));
+
+        // Once saved, the storage knows the page
+        this.pages.add("alice");
+        this.allocator.release(WIKI, "alice");
+        this.counters.clear();
+        Assert.assertEquals("alice_1", this.allocator.allocate(WIKI, "alice"));
+
+        // A name whose page failed to be saved can be handed out again
+        this.allocator.release(WIKI, "alice_0");
+        this.allocator.release(WIKI, "alice_1");
+        this.counters.clear();
+        Assert.assertEquals("alice_0", this.allocator.allocate(WIKI, "alice"));
+    }
+
+    /**
+     * @return a cache backed by {@link #counters}, whose entries the tests evict
+     */
+    private Cache< ? > newCache()
+    {
+        return (Cache< ? >) Proxy.newProxyInstance(Cache.class.getClassLoader(), new Class< ? >[] {Cache.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("set".equals(name)) {
+                        counters.put(args[0], args[1]);
+                    } else if ("get".equals(name)) {
+                        return counters.get(args[0]);
+                    } else if ("remove".equals(name)) {
+                        counters.remove(args[0]);
+                    }
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
+
+/**
+ * Unit tests for {@link DefaultValidatedPrincipalCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultValidatedPrincipalCacheTest
+{
+    private static final String ALICE = "xwiki:XWiki.Alice";
+
+    private static final String BOB = "xwiki:XWiki.Bob";
+
+    private DefaultValidatedPrincipalCache cache;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.cache = new DefaultValidatedPrincipalCache();
+        ReflectionUtils.setFieldValue(this.cache, "cacheManager",
+            Proxy.newProxyInstance(CacheManager.class.getClassLoader(), new Class< ? >[] {CacheManager.class},
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "createNewCache".equals(method.getName()) ? newCache() : null;
+                    }
+                }));
+        this.cache.initialize();
+    }
+
+    @Test
+    public void validationIsReusedForTheSameCredentials()
+    {
+        this.cache.put("s1", "alice", "secret", "encrypted", ALICE);
+
+        Assert.assertEquals(ALICE, this.cache.get("s1", "alice", "secret", "encrypted"));
+        Assert.assertNull(this.cache.get("s1", "alice", "other", "encrypted"));
+        Assert.assertNull(this.cache.get("s1", "alice", "secret", "reencrypted"));
+        Assert.assertNull(this.cache.get("s2", "alice", "secret", "encrypted"));
+        Assert.assertNull(this.cache.get(null, "alice", "secret", "encrypted"));
+    }
+
+    @Test
+    public void invalidatingASessionKeepsTheOthers()
+    {
+        this.cache.put("s1", "alice", "secret", "encrypted", ALICE);
+        this.cache.put("s2", "alice", "secret", "encrypted", ALICE);
+
+        this.cache.invalidate("s1");
+
+        Assert.assertNull(this.cache.get("s1", "alice", "secret", "encrypted"));
+        Assert.assertEquals(ALICE, this.cache.get("s2", "alice", "secret", "encrypted"));
+    }
+
+    @Test
+    public void invalidatingAPrincipalKeepsTheOtherPrincipals() throws Exception
+    {
+        this.cache.put("s1", "alice", "secret", "encrypted", ALICE);
+        this.cache.put("s2", "alice", "secret", "encrypted", ALICE);
+        this.cache.put("s3", "bob", "secret", "encrypted", BOB);
+
+        this.cache.invalidatePrincipal(ALICE);
+
+        Assert.assertNull(this.cache.get("s1", "alice", "secret", "encrypted"));
+        Assert.assertNull(this.cache.get("s2", "alice", "secret", "encrypted"));
+        Assert.assertEquals(BOB, this.cache.get("s3", "bob", "secret", "encrypted"));
+
+        // A validation made after the invalidation is used again
+        Thread.sleep(5);
+        this.cache.put("s1", "alice", "secret", "encrypted", ALICE);
+        Assert.assertEquals(ALICE, this.cache.get("s1", "alice", "secret", "encrypted"));
+        Assert.assertNull(this.cache.get("s2", "alice", "secret", "encrypted"));
+    }
+
+    /**
+     * @return a cache backed by a map, without eviction
+     */
+    private static Cache< ? > newCache()
+    {
+        final Map<Object, Object> entries = new ConcurrentHashMap<Object, Object>();
+        return (Cache< ? >) Proxy.newProxyInstance(Cache.class.getClassLoader(), new Class< ? >[] {Cache.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("set".equals(name)) {
+                        entries.put(args[0], args[1]);
+                    } else if ("get".equals(name)) {
+                        return entries.get(args[0]);
+                    } else if ("remove".equals(name)) {
+                        entries.remove(args[0]);
+                    } else if ("removeAll".equals(name)) {
+                        entries.clear();
+                    }
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HttpOnlyCookies}.
+ *
+ * @version $Id$
+ */
+public class HttpOnlyCookiesTest
+{
+    @Test
+    public void cookieWithLifetime()
+    {
+        Assert.assertEquals("name=value; Path=/xwiki; Max-Age=600; HttpOnly",
+            HttpOnlyCookies.format("name", "value", "/xwiki", 600, false));
+    }
+
+    @Test
+    public void removedCookie()
+    {
+        Assert.assertEquals("name=; Path=/; Max-Age=0; HttpOnly; Secure",
+            HttpOnlyCookies.format("name", null, "/", 0, true));
+    }
+
+    @Test
+    public void cookieLastingUntilTheBrowserIsClosed()
+    {
+        Assert.assertEquals("name=value; Path=/; HttpOnly", HttpOnlyCookies.format("name", "value", "/", -1, false));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.brickred.socialauth.AccessGrant;
+import org.brickred.socialauth.AuthProvider;
+import org.brickred.socialauth.Profile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.social.authentication.SocialAuthSession;
+
+/**
+ * Unit tests for the encoding of the sessions stored by {@link JdbcSocialAuthSessionStore}.
+ *
+ * @version $Id$
+ */
+public class JdbcSocialAuthSessionStoreTest
+{
+    private static final String PROVIDER = "google";
+
+    private static final String PREFIX = "encrypted:";
+
+    private final JdbcSocialAuthSessionStore store = new JdbcSocialAuthSessionStore();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ReflectionUtils.setFieldValue(this.store, "logger", NOPLogger.NOP_LOGGER);
+        ReflectionUtils.setFieldValue(this.store, "cipher", new TestCipher());
+    }
+
+    @Test
+    public void encodedSessionIsDecoded() throws Exception
+    {
+        SocialAuthSession session = new SocialAuthSession();
+        Profile profile = new Profile();
+        profile.setValidatedId("42");
+        session.putAuthProvider(PROVIDER, newAuthProvider(new AccessGrant("token", "secret")), profile);
+        session.setCurrentProvider(PROVIDER);
+        session.bindUser(new DocumentReference("xwiki", "XWiki", "JaneDoe"), "xwiki:XWiki.JaneDoe");
+
+        String data = this.store.encode(session);
+        Assert.assertTrue(data.startsWith(PREFIX));
+
+        SocialAuthSession decoded = this.store.decode(data);
+        Assert.assertEquals(PROVIDER, decoded.getCurrentProvider());
+        Assert.assertEquals("42", decoded.getGrant(PROVIDER).getValidatedId());
+        Assert.assertEquals("token", decoded.getGrant(PROVIDER).getAccessGrant().getKey());
+        Assert.assertEquals(session.getUser(), decoded.getUser());
+        Assert.assertEquals(session.getPrincipal(), decoded.getPrincipal());
+    }
+
+    @Test
+    public void oversizedSessionIsNotStored() throws Exception
+    {
+        SocialAuthSession session = new SocialAuthSession();
+        AccessGrant accessGrant = new AccessGrant(StringUtils.repeat("k", 10000), "secret");
+        session.putAuthProvider(PROVIDER, newAuthProvider(accessGrant), new Profile());
+
+        Assert.assertNull(this.store.encode(session));
+    }
+
+    @Test
+    public void sessionWithSeveralGrantsIsStored() throws Exception
+    {
+        SocialAuthSession session = new SocialAuthSession();
+        for (String provider : new String[] {"facebook", "twitter", "linkedin", PROVIDER}) {
+            AccessGrant accessGrant = new AccessGrant(StringUtils.repeat("k", 200), "secret");
+            session.putAuthProvider(provider, newAuthProvider(accessGrant), new Profile());
+        }
+
+        Assert.assertNotNull(this.store.encode(session));
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void otherClassesAreRefused() throws Exception
+    {
+        this.store.decode(encrypt(new ArrayList<String>()));
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void sessionsInsideOtherClassesAreRefused() throws Exception
+    {
+        ArrayList<SocialAuthSession> sessions = new ArrayList<SocialAuthSession>();
+        sessions.add(new SocialAuthSession());
+        this.store.decode(encrypt(sessions));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void unencryptedSessionsAreRefused() throws Exception
+    {
+        this.store.decode(StringUtils.removeStart(this.store.encode(new SocialAuthSession()), PREFIX));
+    }
+
+    private static String encrypt(Serializable object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return PREFIX + Base64.encodeBase64String(bytes.toByteArray());
+    }
+
+    private static AuthProvider newAuthProvider(final AccessGrant accessGrant)
+    {
+        return (AuthProvider) Proxy.newProxyInstance(AuthProvider.class.getClassLoader(),
+            new Class< ? >[] {AuthProvider.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return "getAccessGrant".equals(method.getName()) ? accessGrant : null;
+                }
+            });
+    }
+
+    /**
+     * Marks the secrets it encrypts, which is enough to check the store goes through it.
+     */
+    private static final class TestCipher implements SessionSecretCipher
+    {
+        @Override
+        public String encrypt(String secret)
+        {
+            return PREFIX + secret;
+        }
+
+        @Override
+        public String decrypt(String encryptedSecret) throws GeneralSecurityException
+        {
+            if (!encryptedSecret.startsWith(PREFIX)) {
+                throw new GeneralSecurityException("Not encrypted");
+            }
+            return encryptedSecret.substring(PREFIX.length());
+        }
+    }
+}
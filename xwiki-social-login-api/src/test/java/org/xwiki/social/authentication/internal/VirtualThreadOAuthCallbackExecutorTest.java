@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.authentication.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.social.authentication.SocialAuthConfiguration;
+import org.xwiki.social.authentication.SocialAuthException;
+
+/**
+ * Unit tests for {@link VirtualThreadOAuthCallbackExecutor}, with calls blocked until the test releases them.
+ *
+ * @version $Id$
+ */
+public class VirtualThreadOAuthCallbackExecutorTest
+{
+    private static final int THREADS = 2;
+
+    private static final int QUEUE_SIZE = 2;
+
+    private static final String PROVIDER = "facebook";
+
+    private final VirtualThreadOAuthCallbackExecutor callbackExecutor = new VirtualThreadOAuthCallbackExecutor();
+
+    /** Runs the requests calling the providers. */
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ReflectionUtils.setFieldValue(this.callbackExecutor, "logger", NOPLogger.NOP_LOGGER);
+        ReflectionUtils.setFieldValue(this.callbackExecutor, "configuration", Proxy.newProxyInstance(
+            SocialAuthConfiguration.class.getClassLoader(), new Class< ? >[] {SocialAuthConfiguration.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("getCallbackThreads".equals(name)) {
+                        return THREADS;
+                    } else if ("getCallbackQueueSize".equals(name)) {
+                        return QUEUE_SIZE;
+                    }
+                    return 10;
+                }
+            }));
+        this.callbackExecutor.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.requests.shutdownNow();
+        this.callbackExecutor.dispose();
+    }
+
+    @Test
+    public void callsBeyondTheThreadsWaitForTheirTurn() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Callable<Integer> call = new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws Exception
+            {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                try {
+                    release.await();
+                    return current;
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        List<Future<Integer>> calls = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < THREADS + QUEUE_SIZE; i++) {
+            calls.add(this.requests.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    return callbackExecutor.execute(PROVIDER, call);
+                }
+            }));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.callbackExecutor.getQueueSize() < QUEUE_SIZE && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(QUEUE_SIZE, this.callbackExecutor.getQueueSize());
+        Assert.assertEquals(THREADS, running.get());
+
+        // Neither a thread nor a place in the queue is left
+        try {
+            this.callbackExecutor.execute(PROVIDER, call);
+            Assert.fail("Expected the call to be refused");
+        } catch (SocialAuthException e) {
+            // Expected
+        }
+
+        release.countDown();
+        for (Future<Integer> result : calls) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(THREADS, maxRunning.get());
+        Assert.assertEquals(0, this.callbackExecutor.getQueueSize());
+    }
+}
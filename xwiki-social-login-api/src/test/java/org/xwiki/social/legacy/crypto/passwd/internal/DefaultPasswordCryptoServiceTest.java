@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.social.legacy.crypto.passwd.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.social.legacy.crypto.passwd.KeyDerivationFunction;
+import org.xwiki.social.legacy.crypto.passwd.PasswordCiphertext;
+import org.xwiki.social.legacy.crypto.passwd.PasswordCryptoServiceConfiguration;
+import org.xwiki.social.legacy.crypto.passwd.PasswordVerificationFunction;
+
+/**
+ * Unit tests for {@link DefaultPasswordCryptoService}, which is used by concurrent requests without any lock.
+ *
+ * @version $Id$
+ */
+public class DefaultPasswordCryptoServiceTest
+{
+    private static final int THREADS = 8;
+
+    private static final int ROUND_TRIPS = 10;
+
+    /** Number of decryptions made by each thread of the throughput measurement. */
+    private static final int DECRYPTIONS = 20;
+
+    /**
+     * A loose bound on the loss of throughput of concurrent decryptions compared to a single thread. Without shared
+     * state they scale with the processors, a lock held while deriving the key would make them queue up.
+     */
+    private static final double MIN_SCALING = 0.5;
+
+    private DefaultKeyDerivationFunctionCalibrator calibrator;
+
+    private DefaultPasswordCryptoService service;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.calibrator = new DefaultKeyDerivationFunctionCalibrator();
+        ReflectionUtils.setFieldValue(this.calibrator, "logger", NOPLogger.NOP_LOGGER);
+        this.calibrator.initialize();
+
+        this.service = new DefaultPasswordCryptoService();
+        ReflectionUtils.setFieldValue(this.service, "config", new TestConfiguration());
+        ReflectionUtils.setFieldValue(this.service, "calibrator", this.calibrator);
+        ReflectionUtils.setFieldValue(this.service, "logger", NOPLogger.NOP_LOGGER);
+        this.service.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.calibrator.dispose();
+    }
+
+    @Test
+    public void concurrentEncryptDecryptRoundTrips() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int thread = i;
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        for (int j = 0; j < ROUND_TRIPS; j++) {
+                            String plaintext = "secret " + thread + " " + j;
+                            String password = "password" + thread + j;
+                            String ciphertext = service.encryptText(plaintext, password);
+                            Assert.assertEquals(plaintext, service.decryptText(ciphertext, password));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                // Rethrows the failures of the threads
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentPasswordVerifications() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final String password = "password" + i;
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        String protectedPassword = service.protectPassword(password);
+                        Assert.assertTrue(service.isPasswordCorrect(password, protectedPassword));
+                        Assert.assertFalse(service.isPasswordCorrect(password + "x", protectedPassword));
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentDecryptionsDontQueueUp() throws Exception
+    {
+        double single = measureDecryptions(1);
+        double concurrent = measureDecryptions(THREADS);
+
+        System.out.println(String.format("decryptText: %.0f ops/s with 1 thread, %.0f ops/s with %d threads (x%.2f)",
+            single, concurrent, THREADS, concurrent / single));
+        Assert.assertTrue(concurrent >= MIN_SCALING * single);
+    }
+
+    /**
+     * @return the number of decryptions per second made by the passed number of threads together
+     */
+    private double measureDecryptions(int threads) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final String plaintext = "secret " + i;
+                final String password = "password" + i;
+                final String ciphertext = this.service.encryptText(plaintext, password);
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        for (int j = 0; j < DECRYPTIONS; j++) {
+                            Assert.assertEquals(plaintext, service.decryptText(ciphertext, password));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            return threads * DECRYPTIONS * 1e9 / (System.nanoTime() - begin);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The default classes, with a cheap key derivation so that the test runs fast.
+     */
+    private static class TestConfiguration implements PasswordCryptoServiceConfiguration
+    {
+        @Override
+        public Class<? extends PasswordCiphertext> getCipherClass()
+        {
+            return CAST5PasswordCiphertext.class;
+        }
+
+        @Override
+        public Class<? extends KeyDerivationFunction> getKeyDerivationFunctionClassForEncryption()
+        {
+            return PBKDF2KeyDerivationFunction.class;
+        }
+
+        @Override
+        public Properties getKeyDerivationFunctionPropertiesForEncryption()
+        {
+            return getProperties();
+        }
+
+        @Override
+        public Class<? extends PasswordVerificationFunction> getPasswordVerificationFunctionClass()
+        {
+            return DefaultPasswordVerificationFunction.class;
+        }
+
+        @Override
+        public Class<? extends KeyDerivationFunction> getKeyDerivationFunctionClassForPasswordVerification()
+        {
+            return PBKDF2KeyDerivationFunction.class;
+        }
+
+        @Override
+        public Properties getKeyDerivationFunctionPropertiesForPasswordVerification()
+        {
+            return getProperties();
+        }
+
+        private Properties getProperties()
+        {
+            Properties properties = new Properties();
+            properties.setProperty("millisecondsOfProcessorTimeToSpend", "10");
+            properties.setProperty("numberOfKilobytesOfMemoryToUse", "128");
+            properties.setProperty("derivedKeyLength", "32");
+            return properties;
+        }
+    }
+}